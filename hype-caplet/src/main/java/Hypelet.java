@@ -20,30 +20,41 @@
 
 import static com.google.cloud.storage.contrib.nio.CloudStorageOptions.withMimeType;
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.io.Files.getNameWithoutExtension;
 import static com.spotify.hype.util.Util.randomAlphaNumeric;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.Collections.emptyMap;
+import static java.util.stream.Collectors.joining;
 
+import com.fasterxml.jackson.core.Base64Variants;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.spotify.hype.gcs.ManifestLoader;
 import com.spotify.hype.gcs.RunManifest;
+import com.spotify.hype.util.StagedClassLoader;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
 
@@ -58,6 +69,18 @@ import java.util.Set;
  * application JVM, pointing to 1. the continuation file, and 2. to an output file which can be
  * written to. If the output file is written, it will be uploaded to the staging uri when the
  * application JVM exits.
+ *
+ * <p>When the {@code HYPE_APPCDS} environment variable is set to {@code true} and the JVM supports
+ * dynamic class data sharing archives (Java 13+), an AppCDS archive is kept next to the staged
+ * files, keyed by the staged classpath and the capsule, whose jars come first on the classpath.
+ * The first run for a classpath creates and uploads the archive, subsequent runs download it and
+ * pass it to the application JVM.
+ *
+ * <p>When the {@code HYPE_LAZY_CLASSPATH} environment variable is set to {@code true}, the
+ * application JVM is started as soon as the continuation is downloaded. The classpath is
+ * downloaded in the background and loaded through a {@link StagedClassLoader}, which waits for
+ * jars as they are needed. AppCDS archives need the whole classpath up front, so
+ * {@code HYPE_APPCDS} takes precedence when both are set.
  */
 public class Hypelet extends Capsule {
 
@@ -66,12 +89,20 @@ public class Hypelet extends Capsule {
   private static final String BINARY = "application/octet-stream";
   private static final String TERMINATION_LOG = "/dev/termination-log";
   private static final String HYPE_EXECUTION_ID = "HYPE_EXECUTION_ID";
+  private static final String HYPE_APPCDS = "HYPE_APPCDS";
+  // ignored when HYPE_APPCDS is in effect, as the archive needs the whole classpath up front
+  private static final String HYPE_LAZY_CLASSPATH = "HYPE_LAZY_CLASSPATH";
+  private static final String CDS_PREFIX = "classpath-";
+  private static final String CDS_EXT = ".jsa";
+  private static final int MIN_DYNAMIC_CDS_JAVA_VERSION = 13;
 
   private final List<Path> downloadedJars = new ArrayList<>();
 
   private Path manifestPath;
   private Path stagingDir;
   private String returnFile;
+  private String archiveToUpload;
+  private boolean normalizeClasspath;
 
   public Hypelet(Capsule pred) {
     super(pred);
@@ -92,33 +123,138 @@ public class Hypelet extends Capsule {
     try {
       final URI uri = URI.create(args.get(0));
       manifestPath = loadFileSystemProvider(uri).getPath(uri);
-      stagingDir = Files.createTempDirectory(STAGING_PREFIX);
+
+      final Optional<String> archiveName = useAppCds()
+          ? Optional.of(archiveName(RunManifest.read(manifestPath), getJarFile()))
+          : Optional.empty();
+
+      // the archive is only usable with the exact same classpath, so use a stable staging dir
+      stagingDir = archiveName.isPresent()
+          ? Files.createDirectories(Paths.get(System.getProperty("java.io.tmpdir"))
+              .resolve(STAGING_PREFIX + getNameWithoutExtension(archiveName.get())))
+          : Files.createTempDirectory(STAGING_PREFIX);
 
       System.out.println("Downloading files from " + manifestPath.toUri());
       // print manifest
       Files.copy(manifestPath, System.out);
-      final RunManifest manifest = ManifestLoader.downloadManifest(manifestPath, stagingDir);
-      System.out.println("Done downloading");
 
-      manifest.classPathFiles().stream()
-          .map(classPathFile -> stagingDir.resolve(classPathFile))
-          .forEach(downloadedJars::add);
+      final List<String> appJvmArgs = new ArrayList<>(jvmArgs);
+      final RunManifest manifest;
+      if (useLazyClasspath() && archiveName.isPresent()) {
+        System.out.println("WARNING: " + HYPE_LAZY_CLASSPATH + " is ignored when " + HYPE_APPCDS
+                           + " is set, downloading the whole classpath");
+      }
+      if (useLazyClasspath() && !archiveName.isPresent()) {
+        manifest = downloadLazily(appJvmArgs);
+      } else {
+        manifest = ManifestLoader.downloadManifest(manifestPath, stagingDir);
+        System.out.println("Done downloading");
+
+        manifest.classPathFiles().stream()
+            .map(classPathFile -> stagingDir.resolve(classPathFile))
+            .forEach(downloadedJars::add);
+      }
+
+      if (archiveName.isPresent()) {
+        appJvmArgs.addAll(appCdsArgs(archiveName.get()));
+      }
 
       returnFile = manifest.continuation()
           .replaceFirst("\\.bin", "-" + getRunId() + "-return.bin");
 
-      // inner jvm args [tmpDir, continuation-filename, output-filename]
+      // inner jvm args [tmpDir, continuation-filename, output-filename, serializer]
       final List<String> stubArgs = new ArrayList<>(args.size());
       stubArgs.add(stagingDir.toString());
       stubArgs.add(manifest.continuation());
       stubArgs.add(returnFile);
-      return super.prelaunch(jvmArgs, stubArgs);
+      manifest.serializer().ifPresent(stubArgs::add);
+      return super.prelaunch(appJvmArgs, stubArgs);
     } catch (Throwable e) {
       e.printStackTrace();
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Downloads the continuation and starts downloading the classpath in the background. The
+   * classpath is passed to the application JVM as a system property instead of on the JVM
+   * classpath.
+   */
+  private RunManifest downloadLazily(List<String> appJvmArgs) throws IOException {
+    final RunManifest manifest = RunManifest.read(manifestPath);
+    ManifestLoader.downloadManifestLazily(manifestPath, manifest, stagingDir)
+        .whenComplete((ignored, e) -> {
+          if (e != null) {
+            e.printStackTrace();
+            try {
+              Files.createFile(stagingDir.resolve(StagedClassLoader.FAILED_MARKER));
+            } catch (IOException ignore) {
+            }
+          } else {
+            System.out.println("Done downloading classpath");
+          }
+        });
+    System.out.println("Done downloading continuation, classpath continues in the background");
+
+    final String stagedClasspath = manifest.classPathFiles().stream()
+        .map(classPathFile -> stagingDir.resolve(classPathFile).toString())
+        .collect(joining(File.pathSeparator));
+    appJvmArgs.add("-D" + StagedClassLoader.CLASSPATH_PROPERTY + "=" + stagedClasspath);
+    return manifest;
+  }
+
+  /**
+   * Returns the application JVM args for using the AppCDS archive if it has already been staged,
+   * or for creating it when the application JVM exits otherwise.
+   */
+  private List<String> appCdsArgs(String archiveName) throws IOException {
+    // archives validate jar modification times, see lookup0
+    normalizeClasspath = true;
+
+    final Path localArchive = stagingDir.resolve(archiveName);
+    final Path stagedArchive = manifestPath.resolveSibling(archiveName);
+    if (Files.exists(localArchive) || Files.exists(stagedArchive)) {
+      if (!Files.exists(localArchive)) {
+        Files.copy(stagedArchive, localArchive);
+      }
+      System.out.println("Using AppCDS archive " + stagedArchive.toUri());
+      return Arrays.asList("-XX:SharedArchiveFile=" + localArchive, "-Xshare:auto");
+    } else {
+      System.out.println("Creating AppCDS archive " + stagedArchive.toUri());
+      archiveToUpload = archiveName;
+      return Arrays.asList("-XX:ArchiveClassesAtExit=" + localArchive);
+    }
+  }
+
+  private void uploadArchive() {
+    final Path localArchive = stagingDir.resolve(archiveToUpload);
+    if (!Files.exists(localArchive)) {
+      return;
+    }
+
+    final Path uploadPath = manifestPath.resolveSibling(archiveToUpload);
+    try {
+      upload(localArchive, uploadPath);
+      System.out.println("Uploaded AppCDS archive to: " + uploadPath.toUri());
+    } catch (FileAlreadyExistsException e) {
+      System.out.println("AppCDS archive " + uploadPath.toUri() + " was already uploaded");
+    } catch (IOException e) {
+      // the archive is only an optimization, don't fail the run because of it
+      System.out.println("Failed to upload AppCDS archive: " + e);
+    }
+  }
+
+  private static void upload(Path localPath, Path uploadPath) throws IOException {
+    Set<OpenOption> options = Sets.newHashSet(WRITE, CREATE_NEW);
+    if (Objects.equals(uploadPath.toUri().getScheme(), "gs")) {
+      options.add(withMimeType(BINARY));
+    }
+    try (WritableByteChannel writer = Files.newByteChannel(uploadPath, options)) {
+      com.google.common.io.Files.asByteSource(localPath.toFile())
+          .copyTo(Channels.newOutputStream(writer));
+    }
+  }
+
   @Override
   protected void cleanup() {
     if (stagingDir != null && returnFile != null) {
@@ -128,14 +264,7 @@ public class Hypelet extends Capsule {
           final Path uploadPath = manifestPath.resolveSibling(returnFile);
           System.out.println("Uploading serialized return value: `" + returnFilePath
               + "` to `" + uploadPath.toString() + "`");
-          Set<OpenOption> options = Sets.newHashSet(WRITE, CREATE_NEW);
-          if (Objects.equals(uploadPath.toUri().getScheme(), "gs")) {
-            options.add(withMimeType(BINARY));
-          }
-          try (WritableByteChannel writer = Files.newByteChannel(uploadPath, options)) {
-            com.google.common.io.Files.asByteSource(returnFilePath.toFile())
-                .copyTo(Channels.newOutputStream(writer));
-          }
+          upload(returnFilePath, uploadPath);
           System.out.println("Uploaded to: " + uploadPath.toUri());
 
           // write the uploaded uri to the termination log if it exists
@@ -157,6 +286,10 @@ public class Hypelet extends Capsule {
       }
     }
 
+    if (stagingDir != null && archiveToUpload != null) {
+      uploadArchive();
+    }
+
     super.cleanup();
   }
 
@@ -168,11 +301,27 @@ public class Hypelet extends Capsule {
     if ("App-Class-Path".equals(attrContext.getKey())) {
       final List<Path> lookup = new ArrayList<>((List<Path>) o);
       lookup.addAll(downloadedJars);
+      if (normalizeClasspath) {
+        // both the downloaded jars and the jars extracted from the capsule get fresh modification
+        // times in every container, which would make the JVM reject the AppCDS archive
+        lookup.forEach(Hypelet::resetLastModified);
+      }
       return lookup;
     }
     return o;
   }
 
+  private static void resetLastModified(Path path) {
+    if (!Files.isRegularFile(path)) {
+      return;
+    }
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(0));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private static String getVersion() {
     Properties props = new Properties();
     try {
@@ -189,6 +338,44 @@ public class Hypelet extends Capsule {
         : randomAlphaNumeric(8);
   }
 
+  private static boolean useLazyClasspath() {
+    return Boolean.parseBoolean(System.getenv(HYPE_LAZY_CLASSPATH));
+  }
+
+  private static boolean useAppCds() {
+    if (!Boolean.parseBoolean(System.getenv(HYPE_APPCDS))) {
+      return false;
+    }
+
+    final String specVersion = System.getProperty("java.specification.version");
+    final int javaVersion = specVersion.startsWith("1.")
+        ? Integer.parseInt(specVersion.substring(2))
+        : Integer.parseInt(specVersion);
+    if (javaVersion < MIN_DYNAMIC_CDS_JAVA_VERSION) {
+      System.out.println(HYPE_APPCDS + " requires Java " + MIN_DYNAMIC_CDS_JAVA_VERSION
+                         + "+, running on " + specVersion);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the archive name for a manifest. Staged classpath file names contain content hashes,
+   * and archives are only valid for the exact JVM build that created them. The continuation
+   * changes with every run, so it is left out even if it is listed with the classpath files.
+   * The jars of the capsule are on the classpath as well, so the capsule contents are included.
+   */
+  private static String archiveName(RunManifest manifest, Path capsuleJar) throws IOException {
+    final Hasher hasher = Hashing.md5().newHasher();
+    hasher.putString(System.getProperty("java.vm.version"), UTF_8);
+    hasher.putBytes(com.google.common.io.Files.asByteSource(capsuleJar.toFile())
+        .hash(Hashing.md5()).asBytes());
+    manifest.classPathFiles().stream()
+        .filter(file -> !file.equals(manifest.continuation()))
+        .forEach(file -> hasher.putString(file, UTF_8).putChar('\n'));
+    return CDS_PREFIX + Base64Variants.MODIFIED_FOR_URL.encode(hasher.hash().asBytes()) + CDS_EXT;
+  }
+
   private static FileSystemProvider loadFileSystemProvider(URI uri) throws IOException {
     if (Objects.equals(uri.getScheme(), "file")) {
       return FileSystems.getFileSystem(URI.create("file:///")).provider();
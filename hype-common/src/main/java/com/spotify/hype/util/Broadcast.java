@@ -0,0 +1,151 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A handle to a value that is staged once and shared by all continuations that capture it.
+ *
+ * <p>Create broadcasts with {@code Submitter.broadcast}, which stages the serialized value as a
+ * content addressed object. Continuations capture only the handle, and fetch the value lazily on
+ * the first call to {@link #value()}.
+ *
+ * <p>Fetched values are cached in the directory named by the {@link #CACHE_DIR_ENV} environment
+ * variable, or in the temp directory if it is not set. When that directory is shared on the node,
+ * runs on the same node download each value once. Both the downloaded and the cached files are
+ * checked against the content hash in the staged name.
+ */
+public final class Broadcast<T> {
+
+  public static final String CACHE_DIR_ENV = "HYPE_BROADCAST_CACHE";
+
+  private static final String CACHE_DIR = "hype-broadcast";
+
+  /**
+   * Matches the url-safe base64 encoded md5 hash at the end of a staged content name.
+   */
+  private static final Pattern CONTENT_HASH_PATTERN =
+      Pattern.compile("-([A-Za-z0-9_-]{22})(\\.[^.]+)?$");
+
+  private final String location;
+
+  // not serialized with the handle
+  private transient T value;
+
+  private Broadcast(String location, T value) {
+    this.location = location;
+    this.value = value;
+  }
+
+  /**
+   * Creates a handle to a value that was serialized with {@link SerializationUtil} and staged at
+   * the location, under a content addressed name.
+   */
+  public static <T> Broadcast<T> of(URI location, T value) {
+    return new Broadcast<>(location.toString(), value);
+  }
+
+  public URI location() {
+    return URI.create(location);
+  }
+
+  /**
+   * Returns the value, fetching it from the node cache or the staging location if needed.
+   */
+  public synchronized T value() {
+    if (value == null) {
+      try {
+        value = fetch(cacheDir());
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to fetch broadcast " + location, e);
+      }
+    }
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  T fetch(Path cacheDir) throws IOException {
+    final Path source = Paths.get(location());
+    final String name = source.getFileName().toString();
+    final Matcher matcher = CONTENT_HASH_PATTERN.matcher(name);
+    if (!matcher.find()) {
+      throw new IOException("Broadcast " + location + " does not have a content hash name");
+    }
+    final String contentHash = matcher.group(1);
+    final Path cached = cacheDir.resolve(name);
+
+    // a cached file might have been left corrupt by another run on the node
+    if (!Files.exists(cached) || !contentHash.equals(contentHash(cached))) {
+      Files.createDirectories(cacheDir);
+      final Path tmp = Files.createTempFile(cacheDir, ".broadcast", ".tmp");
+      try {
+        Files.copy(source, tmp, REPLACE_EXISTING);
+        final String fetchedHash = contentHash(tmp);
+        if (!contentHash.equals(fetchedHash)) {
+          throw new IOException(
+              "Broadcast " + location + " has content hash " + fetchedHash);
+        }
+        // the name is content addressed, so concurrent fetches write the same file
+        Files.move(tmp, cached, ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    }
+
+    final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    return (T) SerializationUtil.readObject(cached, contextClassLoader != null
+        ? contextClassLoader
+        : Broadcast.class.getClassLoader());
+  }
+
+  /**
+   * Returns the url-safe base64 encoded md5 hash of a file's contents, as used in staged names.
+   */
+  static String contentHash(Path file) throws IOException {
+    return BaseEncoding.base64Url().omitPadding().encode(
+        com.google.common.io.Files.asByteSource(file.toFile()).hash(Hashing.md5()).asBytes());
+  }
+
+  private static Path cacheDir() {
+    final String cacheDir = System.getenv(CACHE_DIR_ENV);
+    return cacheDir != null
+        ? Paths.get(cacheDir)
+        : Paths.get(System.getProperty("java.io.tmpdir"), CACHE_DIR);
+  }
+
+  @Override
+  public String toString() {
+    return "Broadcast{" + location + "}";
+  }
+}
@@ -0,0 +1,92 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ServiceLoader;
+
+/**
+ * Encodes the return value of a run, so that it can be transferred from the node back to the
+ * submitter.
+ *
+ * <p>The serializer is selected by name per run and recorded in the run manifest, so that both
+ * sides use the same codec. Besides the built in {@link KryoSerializer}, {@link JavaSerializer}
+ * and {@link RawBytesSerializer}, implementations are looked up with {@link ServiceLoader} from
+ * {@code META-INF/services/com.spotify.hype.util.HypeSerializer}.
+ */
+public interface HypeSerializer {
+
+  String name();
+
+  /**
+   * Writes the value to the output stream. The stream is not closed.
+   */
+  void write(Object value, OutputStream output) throws IOException;
+
+  Object read(InputStream input, ClassLoader classLoader) throws IOException;
+
+  /**
+   * Writes the value to a file. Serializers that can write files more efficiently than streams
+   * override this.
+   */
+  default void write(Object value, Path path) throws IOException {
+    try (OutputStream output = Files.newOutputStream(path)) {
+      write(value, output);
+    }
+  }
+
+  /**
+   * Reads the value from a local file. Serializers that can map files instead of streaming them
+   * override this.
+   */
+  default Object read(Path path, ClassLoader classLoader) throws IOException {
+    try (InputStream input = Files.newInputStream(path)) {
+      return read(input, classLoader);
+    }
+  }
+
+  /**
+   * Returns the serializer with the given name.
+   *
+   * @throws IllegalArgumentException if there is no such serializer
+   */
+  static HypeSerializer forName(String name, ClassLoader classLoader) {
+    switch (name) {
+      case KryoSerializer.NAME:
+        return new KryoSerializer();
+      case JavaSerializer.NAME:
+        return new JavaSerializer();
+      case RawBytesSerializer.NAME:
+        return new RawBytesSerializer();
+      default:
+        for (HypeSerializer serializer : ServiceLoader.load(HypeSerializer.class, classLoader)) {
+          if (serializer.name().equals(name)) {
+            return serializer;
+          }
+        }
+        throw new IllegalArgumentException("Unknown serializer " + name);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/**
+ * Serializes {@link java.io.Serializable} objects with java serialization.
+ */
+public class JavaSerializer implements HypeSerializer {
+
+  public static final String NAME = "java";
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public void write(Object value, OutputStream output) throws IOException {
+    final ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+    objectOutput.writeObject(value);
+    objectOutput.flush();
+  }
+
+  @Override
+  public Object read(InputStream input, ClassLoader classLoader) throws IOException {
+    try {
+      return new ObjectInputStream(input) {
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException {
+          try {
+            return Class.forName(desc.getName(), false, classLoader);
+          } catch (ClassNotFoundException e) {
+            return super.resolveClass(desc);
+          }
+        }
+      }.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Serializes any object with Kryo, see {@link SerializationUtil}. This is the default.
+ *
+ * <p>Primitive arrays and buffers bypass Kryo, and are memory mapped when read from a file.
+ */
+public class KryoSerializer implements HypeSerializer {
+
+  public static final String NAME = "kryo";
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public void write(Object value, OutputStream output) {
+    SerializationUtil.serializeObject(value, output);
+  }
+
+  @Override
+  public Object read(InputStream input, ClassLoader classLoader) {
+    return SerializationUtil.readObject(input, classLoader);
+  }
+
+  @Override
+  public void write(Object value, Path path) {
+    SerializationUtil.serializeObject(value, path);
+  }
+
+  @Override
+  public Object read(Path path, ClassLoader classLoader) {
+    return SerializationUtil.readObject(path, classLoader);
+  }
+}
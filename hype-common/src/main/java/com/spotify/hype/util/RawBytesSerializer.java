@@ -0,0 +1,59 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Passes {@code byte[]} and {@link ByteBuffer} values through as-is, for results that are
+ * already encoded, e.g. Avro or Arrow. Values are read back as {@code byte[]}.
+ */
+public class RawBytesSerializer implements HypeSerializer {
+
+  public static final String NAME = "bytes";
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public void write(Object value, OutputStream output) throws IOException {
+    if (value instanceof byte[]) {
+      output.write((byte[]) value);
+    } else if (value instanceof ByteBuffer) {
+      Channels.newChannel(output).write(((ByteBuffer) value).duplicate());
+    } else {
+      throw new IllegalArgumentException(
+          "Can only write byte[] or ByteBuffer values, got " + value);
+    }
+  }
+
+  @Override
+  public Object read(InputStream input, ClassLoader classLoader) throws IOException {
+    return ByteStreams.toByteArray(input);
+  }
+}
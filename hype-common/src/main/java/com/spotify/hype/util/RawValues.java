@@ -0,0 +1,388 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+
+/**
+ * Encodes primitive arrays and {@link ByteBuffer}s as a fixed size header followed by their raw
+ * bytes, bypassing Kryo.
+ *
+ * <p>The header is
+ * <pre>
+ * magic (4 bytes) | type (1 byte) | byte order (1 byte) | padding (2 bytes) | length (8 bytes)
+ * </pre>
+ * where the length is in elements. The magic starts with a zero byte, which Kryo only writes
+ * for a serialized {@code null}, so raw values can be told apart from Kryo output.
+ *
+ * <p>Files are written and read through memory mapped regions, so the data is not copied through
+ * intermediate heap buffers. A {@link ByteBuffer} is read back as a read-only mapping of the file.
+ */
+final class RawValues {
+
+  private static final byte[] MAGIC = {0, 'H', 'Y', 'R'};
+  private static final int HEADER_SIZE = 16;
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The maximum number of bytes to map at once, a multiple of all element sizes.
+   */
+  private static final long MAX_MAPPED_BYTES = 1 << 30;
+
+  private static final byte BYTES = 1;
+  private static final byte SHORTS = 2;
+  private static final byte CHARS = 3;
+  private static final byte INTS = 4;
+  private static final byte LONGS = 5;
+  private static final byte FLOATS = 6;
+  private static final byte DOUBLES = 7;
+  private static final byte BYTE_BUFFER = 8;
+
+  private static final byte BIG_ENDIAN = 0;
+  private static final byte LITTLE_ENDIAN = 1;
+
+  private RawValues() {
+  }
+
+  static boolean isRaw(Object value) {
+    return type(value) != 0;
+  }
+
+  /**
+   * Returns true if the bytes start with the raw value magic.
+   */
+  static boolean isRaw(byte[] bytes, int length) {
+    if (length < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (bytes[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the file starts with the raw value magic.
+   */
+  static boolean isRawFile(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      final ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+      while (magic.hasRemaining() && channel.read(magic) > 0) {
+        // read until the magic is complete or the file ends
+      }
+      return isRaw(magic.array(), magic.position());
+    }
+  }
+
+  static int magicLength() {
+    return MAGIC.length;
+  }
+
+  static void write(Object value, Path path) throws IOException {
+    final byte type = type(value);
+    final int elementSize = elementSize(type);
+    final long length = length(value);
+
+    try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+      channel.write(header(type, length));
+      if (value instanceof ByteBuffer) {
+        final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        return;
+      }
+
+      final long chunkElements = MAX_MAPPED_BYTES / elementSize;
+      for (long offset = 0; offset < length; offset += chunkElements) {
+        final int count = (int) Math.min(chunkElements, length - offset);
+        final MappedByteBuffer mapped = channel.map(
+            MapMode.READ_WRITE, HEADER_SIZE + offset * elementSize, (long) count * elementSize);
+        mapped.order(ByteOrder.nativeOrder());
+        put(value, type, mapped, (int) offset, count);
+      }
+    }
+  }
+
+  static Object read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (channel.read(header) < 0) {
+          throw new EOFException("Truncated raw value header in " + path);
+        }
+      }
+      header.flip();
+      final byte type = readType(header);
+      final ByteOrder order = header.get(5) == LITTLE_ENDIAN
+          ? ByteOrder.LITTLE_ENDIAN
+          : ByteOrder.BIG_ENDIAN;
+      final long length = header.getLong(8);
+      final int elementSize = elementSize(type);
+
+      if (type == BYTE_BUFFER) {
+        return channel.map(MapMode.READ_ONLY, HEADER_SIZE, length);
+      }
+
+      final Object array = newArray(type, length);
+      final long chunkElements = MAX_MAPPED_BYTES / elementSize;
+      for (long offset = 0; offset < length; offset += chunkElements) {
+        final int count = (int) Math.min(chunkElements, length - offset);
+        final MappedByteBuffer mapped = channel.map(
+            MapMode.READ_ONLY, HEADER_SIZE + offset * elementSize, (long) count * elementSize);
+        mapped.order(order);
+        get(array, type, mapped, (int) offset, count);
+      }
+      return array;
+    }
+  }
+
+  static void write(Object value, OutputStream output) throws IOException {
+    final byte type = type(value);
+    final int elementSize = elementSize(type);
+    final long length = length(value);
+
+    output.write(header(type, length).array());
+    if (value instanceof ByteBuffer) {
+      final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+      final byte[] chunk = new byte[Math.min(STREAM_BUFFER_SIZE, buffer.remaining())];
+      while (buffer.hasRemaining()) {
+        final int count = Math.min(chunk.length, buffer.remaining());
+        buffer.get(chunk, 0, count);
+        output.write(chunk, 0, count);
+      }
+      return;
+    }
+
+    final ByteBuffer buffer =
+        ByteBuffer.allocate(STREAM_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    final int chunkElements = STREAM_BUFFER_SIZE / elementSize;
+    for (int offset = 0; offset < length; offset += chunkElements) {
+      final int count = (int) Math.min(chunkElements, length - offset);
+      buffer.clear();
+      put(value, type, buffer, offset, count);
+      output.write(buffer.array(), 0, count * elementSize);
+    }
+  }
+
+  /**
+   * Reads a raw value from a stream. As there is no file to map, a {@link ByteBuffer} is read
+   * into a heap buffer.
+   */
+  static Object read(InputStream input) throws IOException {
+    final DataInputStream dataInput = new DataInputStream(input);
+    final byte[] headerBytes = new byte[HEADER_SIZE];
+    dataInput.readFully(headerBytes);
+    final ByteBuffer header = ByteBuffer.wrap(headerBytes);
+    final byte type = readType(header);
+    final ByteOrder order = header.get(5) == LITTLE_ENDIAN
+        ? ByteOrder.LITTLE_ENDIAN
+        : ByteOrder.BIG_ENDIAN;
+    final long length = header.getLong(8);
+    final int elementSize = elementSize(type);
+
+    if (type == BYTE_BUFFER) {
+      final byte[] bytes = new byte[Math.toIntExact(length)];
+      dataInput.readFully(bytes);
+      return ByteBuffer.wrap(bytes);
+    }
+
+    final Object array = newArray(type, length);
+    final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE).order(order);
+    final int chunkElements = STREAM_BUFFER_SIZE / elementSize;
+    for (int offset = 0; offset < length; offset += chunkElements) {
+      final int count = (int) Math.min(chunkElements, length - offset);
+      dataInput.readFully(buffer.array(), 0, count * elementSize);
+      buffer.clear().limit(count * elementSize);
+      get(array, type, buffer, offset, count);
+    }
+    return array;
+  }
+
+  private static ByteBuffer header(byte type, long length) {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put(MAGIC);
+    header.put(type);
+    header.put(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : BIG_ENDIAN);
+    header.putLong(8, length);
+    header.clear();
+    return header;
+  }
+
+  private static byte readType(ByteBuffer header) throws IOException {
+    final byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+    if (!isRaw(magic, magic.length)) {
+      throw new IOException("Not a raw value");
+    }
+    return header.get(4);
+  }
+
+  private static byte type(Object value) {
+    if (value instanceof byte[]) {
+      return BYTES;
+    } else if (value instanceof short[]) {
+      return SHORTS;
+    } else if (value instanceof char[]) {
+      return CHARS;
+    } else if (value instanceof int[]) {
+      return INTS;
+    } else if (value instanceof long[]) {
+      return LONGS;
+    } else if (value instanceof float[]) {
+      return FLOATS;
+    } else if (value instanceof double[]) {
+      return DOUBLES;
+    } else if (value instanceof ByteBuffer) {
+      return BYTE_BUFFER;
+    }
+    return 0;
+  }
+
+  private static int elementSize(byte type) throws IOException {
+    switch (type) {
+      case BYTES:
+      case BYTE_BUFFER:
+        return Byte.BYTES;
+      case SHORTS:
+        return Short.BYTES;
+      case CHARS:
+        return Character.BYTES;
+      case INTS:
+        return Integer.BYTES;
+      case LONGS:
+        return Long.BYTES;
+      case FLOATS:
+        return Float.BYTES;
+      case DOUBLES:
+        return Double.BYTES;
+      default:
+        throw new IOException("Unknown raw value type " + type);
+    }
+  }
+
+  private static long length(Object value) {
+    return value instanceof ByteBuffer
+        ? ((ByteBuffer) value).remaining()
+        : java.lang.reflect.Array.getLength(value);
+  }
+
+  private static Object newArray(byte type, long length) throws IOException {
+    final int n = Math.toIntExact(length);
+    switch (type) {
+      case BYTES:
+        return new byte[n];
+      case SHORTS:
+        return new short[n];
+      case CHARS:
+        return new char[n];
+      case INTS:
+        return new int[n];
+      case LONGS:
+        return new long[n];
+      case FLOATS:
+        return new float[n];
+      case DOUBLES:
+        return new double[n];
+      default:
+        throw new IOException("Unknown raw value type " + type);
+    }
+  }
+
+  /**
+   * Copies {@code count} elements of the array starting at {@code offset} into the buffer.
+   */
+  private static void put(Object array, byte type, ByteBuffer buffer, int offset, int count) {
+    switch (type) {
+      case BYTES:
+        buffer.put((byte[]) array, offset, count);
+        break;
+      case SHORTS:
+        buffer.asShortBuffer().put((short[]) array, offset, count);
+        break;
+      case CHARS:
+        buffer.asCharBuffer().put((char[]) array, offset, count);
+        break;
+      case INTS:
+        buffer.asIntBuffer().put((int[]) array, offset, count);
+        break;
+      case LONGS:
+        buffer.asLongBuffer().put((long[]) array, offset, count);
+        break;
+      case FLOATS:
+        buffer.asFloatBuffer().put((float[]) array, offset, count);
+        break;
+      case DOUBLES:
+        buffer.asDoubleBuffer().put((double[]) array, offset, count);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown raw value type " + type);
+    }
+  }
+
+  /**
+   * Copies {@code count} elements from the buffer into the array starting at {@code offset}.
+   */
+  private static void get(Object array, byte type, ByteBuffer buffer, int offset, int count) {
+    switch (type) {
+      case BYTES:
+        buffer.get((byte[]) array, offset, count);
+        break;
+      case SHORTS:
+        buffer.asShortBuffer().get((short[]) array, offset, count);
+        break;
+      case CHARS:
+        buffer.asCharBuffer().get((char[]) array, offset, count);
+        break;
+      case INTS:
+        buffer.asIntBuffer().get((int[]) array, offset, count);
+        break;
+      case LONGS:
+        buffer.asLongBuffer().get((long[]) array, offset, count);
+        break;
+      case FLOATS:
+        buffer.asFloatBuffer().get((float[]) array, offset, count);
+        break;
+      case DOUBLES:
+        buffer.asDoubleBuffer().get((double[]) array, offset, count);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown raw value type " + type);
+    }
+  }
+}
@@ -20,24 +20,50 @@
 
 package com.spotify.hype.util;
 
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.ClosureSerializer;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
+/**
+ * Serializes continuations and values with Kryo.
+ *
+ * <p>Primitive arrays and {@link java.nio.ByteBuffer}s, including direct buffers, are written as
+ * a raw header followed by their bytes instead of going through Kryo. When reading from a
+ * {@link Path}, such values are memory mapped, and buffers are returned as a read-only mapping of
+ * the file.
+ *
+ * <p>Kryo files are written and read through large buffers, and files above a threshold are
+ * memory mapped when read.
+ */
 public class SerializationUtil {
 
   private static final String CONT_FILE = "continuation-";
   private static final String EXT = ".bin";
 
+  /**
+   * Files of at least this many bytes are memory mapped when read, configured with the
+   * {@code hype.serialization.mapThreshold} system property.
+   */
+  private static final long MAP_THRESHOLD =
+      Long.getLong("hype.serialization.mapThreshold", 64 * 1024 * 1024);
+
+  private static final int FILE_BUFFER_SIZE = 1024 * 1024;
+  private static final int STREAM_BUFFER_SIZE = 4096;
+
   public static Path serializeContinuation(Fn<?> continuation) {
     try {
       final Path outputPath = Files.createTempFile(CONT_FILE, EXT);
@@ -52,38 +78,117 @@ public class SerializationUtil {
     return (Fn) readObject(continuationPath);
   }
 
-  public static void serializeObject(Object obj, Path outputPath) {
-    Kryo kryo = new Kryo();
-    kryo.register(java.lang.invoke.SerializedLambda.class);
-    kryo.register(ClosureSerializer.Closure.class, new ClosureSerializer());
+  public static Fn<?> readContinuation(Path continuationPath, ClassLoader classLoader) {
+    return (Fn) readObject(continuationPath, classLoader);
+  }
 
+  public static void serializeObject(Object obj, Path outputPath) {
     try {
-      final File file = outputPath.toFile();
-      try (Output output = new Output(new FileOutputStream(file))) {
-        kryo.writeClassAndObject(output, obj);
+      if (RawValues.isRaw(obj)) {
+        RawValues.write(obj, outputPath);
+        return;
+      }
+      try (OutputStream outputStream = Files.newOutputStream(outputPath)) {
+        serializeObject(obj, outputStream, FILE_BUFFER_SIZE);
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Serializes the object to the output stream, without closing it.
+   */
+  public static void serializeObject(Object obj, OutputStream outputStream) {
+    serializeObject(obj, outputStream, STREAM_BUFFER_SIZE);
+  }
+
+  private static void serializeObject(Object obj, OutputStream outputStream, int bufferSize) {
+    if (RawValues.isRaw(obj)) {
+      try {
+        RawValues.write(obj, outputStream);
+        outputStream.flush();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+
+    Output output = new Output(outputStream, bufferSize);
+    newKryo(SerializationUtil.class.getClassLoader()).writeClassAndObject(output, obj);
+    output.flush();
+  }
+
   public static Object readObject(Path object) {
-    File file = object.toFile();
+    return readObject(object, SerializationUtil.class.getClassLoader());
+  }
+
+  public static Object readObject(Path object, ClassLoader classLoader) {
+    return readObject(object, classLoader, MAP_THRESHOLD);
+  }
+
+  /**
+   * Reads the object from a file. Writable files of at least {@code mapThreshold} bytes are
+   * memory mapped instead of streamed.
+   */
+  static Object readObject(Path object, ClassLoader classLoader, long mapThreshold) {
+    try {
+      if (RawValues.isRawFile(object)) {
+        return RawValues.read(object);
+      }
+
+      final long size = Files.size(object);
+      if (size >= mapThreshold && size <= Integer.MAX_VALUE && Files.isWritable(object)) {
+        // kryo patches ascii strings in place, which a private mapping keeps out of the file
+        try (FileChannel channel = FileChannel.open(object, READ, WRITE)) {
+          final Input input = new ByteBufferInput(channel.map(MapMode.PRIVATE, 0, size));
+          return newKryo(classLoader).readClassAndObject(input);
+        }
+      }
 
-    try (InputStream input = new FileInputStream(file)) {
-      return readObject(input);
+      try (InputStream inputStream = Files.newInputStream(object)) {
+        final Input input = new Input(inputStream, FILE_BUFFER_SIZE);
+        return newKryo(classLoader).readClassAndObject(input);
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   public static Object readObject(InputStream inputStream) {
+    return readObject(inputStream, SerializationUtil.class.getClassLoader());
+  }
+
+  public static Object readObject(InputStream inputStream, ClassLoader classLoader) {
+    final PushbackInputStream pushback =
+        new PushbackInputStream(inputStream, RawValues.magicLength());
+    try {
+      final byte[] magic = new byte[RawValues.magicLength()];
+      int read = 0;
+      int n;
+      while (read < magic.length && (n = pushback.read(magic, read, magic.length - read)) > 0) {
+        read += n;
+      }
+      if (read > 0) {
+        pushback.unread(magic, 0, read);
+      }
+      if (RawValues.isRaw(magic, read)) {
+        return RawValues.read(pushback);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    Input input = new Input(pushback, STREAM_BUFFER_SIZE);
+    return newKryo(classLoader).readClassAndObject(input);
+  }
+
+  private static Kryo newKryo(ClassLoader classLoader) {
     Kryo kryo = new Kryo();
+    kryo.setClassLoader(classLoader);
     kryo.register(java.lang.invoke.SerializedLambda.class);
     kryo.register(ClosureSerializer.Closure.class, new ClosureSerializer());
     kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
-
-    Input input = new Input(inputStream);
-    return kryo.readClassAndObject(input);
+    return kryo;
   }
 }
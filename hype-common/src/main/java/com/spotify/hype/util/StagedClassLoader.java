@@ -0,0 +1,272 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipFile;
+
+/**
+ * A class loader for a classpath that is still being downloaded.
+ *
+ * <p>Jars are expected to appear atomically in their location once they are completely
+ * downloaded. Lookups only wait for the jars up to and including the first one that contains the
+ * requested class or resource, which keeps the lookup order of a regular classpath.
+ *
+ * <p>The downloader runs in another process, so lookups wait on a latch per jar that a watcher
+ * thread releases when the file system reports the jar in its directory. If the download fails,
+ * the downloader creates the {@link #FAILED_MARKER} file in the staging directory, which fails all
+ * waiting lookups.
+ */
+public class StagedClassLoader extends URLClassLoader {
+
+  /**
+   * System property with the staged classpath, separated by {@link File#pathSeparator}.
+   */
+  public static final String CLASSPATH_PROPERTY = "hype.staged.classpath";
+  public static final String FAILED_MARKER = ".hype-download-failed";
+
+  // file system events can be missed, e.g. when a directory is recreated, so rescan now and then
+  private static final long RESCAN_INTERVAL_MILLIS = 1000;
+
+  private final List<Path> jars;
+  private final Path stagingDir;
+  private final Path failedMarker;
+  private final ZipFile[] openedJars;
+  private final CountDownLatch[] downloadedJars;
+
+  private volatile int availableJars = 0;
+  private volatile boolean closed = false;
+  private Thread watcher;
+
+  private StagedClassLoader(List<Path> jars, Path stagingDir, ClassLoader parent) {
+    super(toUrls(jars), parent);
+    this.jars = jars;
+    this.stagingDir = stagingDir;
+    this.failedMarker = stagingDir.resolve(FAILED_MARKER);
+    this.openedJars = new ZipFile[jars.size()];
+    this.downloadedJars = new CountDownLatch[jars.size()];
+    for (int i = 0; i < downloadedJars.length; i++) {
+      downloadedJars[i] = new CountDownLatch(1);
+    }
+  }
+
+  /**
+   * Creates a class loader for the classpath in the {@link #CLASSPATH_PROPERTY} system property.
+   */
+  public static StagedClassLoader fromSystemProperty(Path stagingDir, ClassLoader parent) {
+    final List<Path> jars = Arrays.stream(
+        System.getProperty(CLASSPATH_PROPERTY).split(File.pathSeparator))
+        .filter(jar -> !jar.isEmpty())
+        .map(Paths::get)
+        .collect(toList());
+    return new StagedClassLoader(jars, stagingDir, parent);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    awaitJarsFor(name.replace('.', '/') + ".class");
+    return super.findClass(name);
+  }
+
+  @Override
+  public URL findResource(String name) {
+    awaitJarsFor(name);
+    return super.findResource(name);
+  }
+
+  @Override
+  public Enumeration<URL> findResources(String name) throws IOException {
+    awaitJarsFor(null);
+    return super.findResources(name);
+  }
+
+  /**
+   * Waits for the jars in classpath order until one contains the entry, or for all jars if
+   * {@code entry} is null or not found.
+   */
+  private void awaitJarsFor(String entry) {
+    if (availableJars == jars.size()) {
+      return;
+    }
+
+    for (int i = 0; i < jars.size(); i++) {
+      awaitJar(i);
+      if (entry != null && contains(i, entry)) {
+        return;
+      }
+    }
+  }
+
+  private synchronized boolean contains(int index, String entry) {
+    if (openedJars[index] == null) {
+      try {
+        openedJars[index] = new ZipFile(jars.get(index).toFile());
+      } catch (IOException e) {
+        // not a zip file, let the parent class loader deal with it
+        return false;
+      }
+    }
+    return openedJars[index].getEntry(entry) != null;
+  }
+
+  private void awaitJar(int index) {
+    if (index < availableJars) {
+      return;
+    }
+
+    final Path jar = jars.get(index);
+    startWatcher();
+    try {
+      downloadedJars[index].await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for " + jar, e);
+    }
+    // the watcher releases all latches when it stops, e.g. because the download failed
+    if (!Files.exists(jar)) {
+      throw new IllegalStateException("Failed to download classpath, " + jar + " is missing");
+    }
+
+    synchronized (this) {
+      if (availableJars == index) {
+        availableJars = index + 1;
+      }
+    }
+  }
+
+  private synchronized void startWatcher() {
+    if (watcher == null) {
+      watcher = new Thread(this::watch, "hype-staged-classpath");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+  }
+
+  /**
+   * Releases the latch of each jar when it appears, until all jars are available, the download
+   * failed or the class loader is closed. All latches are released when watching stops.
+   */
+  private void watch() {
+    try (WatchService watchService = stagingDir.getFileSystem().newWatchService()) {
+      final Set<Path> directories = jars.stream()
+          .map(Path::getParent)
+          .filter(Objects::nonNull)
+          .collect(toCollection(HashSet::new));
+      directories.add(stagingDir);
+      for (Path directory : directories) {
+        if (Files.isDirectory(directory)) {
+          directory.register(watchService, ENTRY_CREATE);
+        }
+      }
+
+      // jars that appeared before the directories were registered don't trigger an event
+      boolean rescan = true;
+      while (!closed) {
+        if (rescan) {
+          for (int i = 0; i < jars.size(); i++) {
+            releaseIfDownloaded(i);
+          }
+        }
+        if (Files.exists(failedMarker) || Arrays.stream(downloadedJars)
+            .allMatch(latch -> latch.getCount() == 0)) {
+          return;
+        }
+
+        final WatchKey key = watchService.poll(RESCAN_INTERVAL_MILLIS, MILLISECONDS);
+        rescan = key == null;
+        if (key != null) {
+          final Path directory = (Path) key.watchable();
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+              rescan = true;
+            } else {
+              final int index = jars.indexOf(directory.resolve((Path) event.context()));
+              if (index >= 0) {
+                releaseIfDownloaded(index);
+              }
+            }
+          }
+          key.reset();
+        }
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      // waiting lookups fail on the missing jars below
+    } finally {
+      for (CountDownLatch latch : downloadedJars) {
+        latch.countDown();
+      }
+    }
+  }
+
+  private void releaseIfDownloaded(int index) {
+    if (downloadedJars[index].getCount() > 0 && Files.exists(jars.get(index))) {
+      downloadedJars[index].countDown();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    synchronized (this) {
+      for (ZipFile jar : openedJars) {
+        if (jar != null) {
+          jar.close();
+        }
+      }
+    }
+    super.close();
+  }
+
+  private static URL[] toUrls(List<Path> jars) {
+    return jars.stream()
+        .map(jar -> {
+          try {
+            return jar.toUri().toURL();
+          } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+          }
+        })
+        .toArray(URL[]::new);
+  }
+}
@@ -0,0 +1,80 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Looks up the files that were staged with a run, e.g. through {@code RunEnvironment.withFile}.
+ *
+ * <p>Staged files are downloaded to the working directory of the continuation under their content
+ * addressed names, e.g. {@code data.csv} as {@code data-<content-hash>.csv}. Staged directories
+ * are extracted to {@code <name>-<content-hash>}.
+ */
+public final class StagedFiles {
+
+  private static final String CONTENT_HASH = "-[A-Za-z0-9_-]{22}";
+
+  private StagedFiles() {
+  }
+
+  /**
+   * Returns the path of a staged file or directory by its original file name.
+   *
+   * @throws IllegalArgumentException if no such file was staged
+   */
+  public static Path get(String fileName) {
+    return get(Paths.get(System.getProperty("user.dir")), fileName);
+  }
+
+  static Path get(Path stagingDir, String fileName) {
+    final int extension = fileName.lastIndexOf('.');
+    final Pattern stagedName = extension > 0
+        ? Pattern.compile(Pattern.quote(fileName.substring(0, extension)) + CONTENT_HASH
+                          + Pattern.quote(fileName.substring(extension)))
+        : Pattern.compile(Pattern.quote(fileName) + CONTENT_HASH);
+
+    final List<Path> matches;
+    try (Stream<Path> files = Files.list(stagingDir)) {
+      matches = files
+          .filter(file -> stagedName.matcher(file.getFileName().toString()).matches())
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    if (matches.isEmpty()) {
+      throw new IllegalArgumentException("No staged file " + fileName + " in " + stagingDir);
+    } else if (matches.size() > 1) {
+      throw new IllegalArgumentException(
+          "Several staged files named " + fileName + " in " + stagingDir + ": " + matches);
+    }
+    return matches.get(0);
+  }
+}
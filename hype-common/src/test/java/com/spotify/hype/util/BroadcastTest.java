@@ -0,0 +1,101 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BroadcastTest {
+
+  private Path staged;
+  private Path cacheDir;
+  private Map<String, Integer> value;
+
+  @Before
+  public void setUp() throws Exception {
+    value = new HashMap<>();
+    value.put("a", 1);
+    Path file = Files.createTempFile("broadcast", ".bin");
+    SerializationUtil.serializeObject(value, file);
+    staged = Files.createTempDirectory("staging")
+        .resolve("broadcast-" + Broadcast.contentHash(file) + ".bin");
+    Files.move(file, staged);
+    cacheDir = Files.createTempDirectory("cache");
+  }
+
+  @Test
+  public void returnsLocalValue() throws Exception {
+    Broadcast<Map<String, Integer>> broadcast = Broadcast.of(staged.toUri(), value);
+    assertEquals(value, broadcast.value());
+  }
+
+  @Test
+  public void capturesOnlyTheHandle() throws Exception {
+    Broadcast<Map<String, Integer>> broadcast = roundtrip(Broadcast.of(staged.toUri(), value));
+    assertEquals(staged.toUri(), broadcast.location());
+    assertEquals(value, broadcast.fetch(cacheDir));
+  }
+
+  @Test
+  public void fetchesFromNodeCache() throws Exception {
+    Broadcast<Map<String, Integer>> broadcast = roundtrip(Broadcast.of(staged.toUri(), value));
+    broadcast.fetch(cacheDir);
+    assertTrue(Files.exists(cacheDir.resolve(staged.getFileName())));
+
+    Files.delete(staged);
+    assertEquals(value, roundtrip(broadcast).fetch(cacheDir));
+  }
+
+  @Test
+  public void refetchesCorruptCachedValue() throws Exception {
+    Broadcast<Map<String, Integer>> broadcast = roundtrip(Broadcast.of(staged.toUri(), value));
+    Files.createDirectories(cacheDir);
+    Files.write(cacheDir.resolve(staged.getFileName()), new byte[] {1, 2, 3});
+
+    assertEquals(value, broadcast.fetch(cacheDir));
+    assertArrayEquals(Files.readAllBytes(staged),
+        Files.readAllBytes(cacheDir.resolve(staged.getFileName())));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsCorruptStagedValue() throws Exception {
+    Broadcast<Map<String, Integer>> broadcast = roundtrip(Broadcast.of(staged.toUri(), value));
+    Files.write(staged, new byte[] {1, 2, 3});
+
+    broadcast.fetch(cacheDir);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Broadcast<T> roundtrip(Broadcast<T> broadcast) throws Exception {
+    Path path = Files.createTempFile("handle-", ".bin");
+    SerializationUtil.serializeObject(broadcast, path);
+    return (Broadcast<T>) SerializationUtil.readObject(path);
+  }
+}
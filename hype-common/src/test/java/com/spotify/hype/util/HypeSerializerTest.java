@@ -0,0 +1,74 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class HypeSerializerTest {
+
+  @Rule
+  public ExpectedException exception = ExpectedException.none();
+
+  @Test
+  public void roundtripKryo() throws Exception {
+    List<String> value = new ArrayList<>(Arrays.asList("a", "b"));
+    assertEquals(value, roundtrip(KryoSerializer.NAME, value));
+  }
+
+  @Test
+  public void roundtripJava() throws Exception {
+    List<String> value = Arrays.asList("a", "b");
+    assertEquals(value, roundtrip(JavaSerializer.NAME, value));
+  }
+
+  @Test
+  public void passesThroughRawBytes() throws Exception {
+    byte[] bytes = {1, 2, 3};
+    assertArrayEquals(bytes, (byte[]) roundtrip(RawBytesSerializer.NAME, bytes));
+    assertArrayEquals(bytes, (byte[]) roundtrip(RawBytesSerializer.NAME, ByteBuffer.wrap(bytes)));
+  }
+
+  @Test
+  public void failsForUnknownSerializer() throws Exception {
+    exception.expect(IllegalArgumentException.class);
+    exception.expectMessage("Unknown serializer avro");
+    HypeSerializer.forName("avro", getClass().getClassLoader());
+  }
+
+  private Object roundtrip(String name, Object value) throws Exception {
+    HypeSerializer serializer = HypeSerializer.forName(name, getClass().getClassLoader());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    serializer.write(value, output);
+    return serializer.read(
+        new ByteArrayInputStream(output.toByteArray()), getClass().getClassLoader());
+  }
+}
@@ -20,10 +20,21 @@
 
 package com.spotify.hype.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Supplier;
 import org.junit.Test;
 
@@ -52,6 +63,74 @@ public class SerializationUtilTest {
     assertEquals("hello", result);
   }
 
+  @Test
+  public void readsMappedFiles() throws Exception {
+    Path path = Files.createTempFile("value-", ".bin");
+    List<String> value = new ArrayList<>(Arrays.asList("a", "b"));
+    SerializationUtil.serializeObject(value, path);
+
+    assertEquals(value, SerializationUtil.readObject(path, getClass().getClassLoader(), 0));
+    assertEquals(
+        value, SerializationUtil.readObject(path, getClass().getClassLoader(), Long.MAX_VALUE));
+  }
+
+  @Test
+  public void roundtripPrimitiveArrays() throws Exception {
+    double[] doubles = {1.5, -2.25, Double.NaN, Double.MAX_VALUE};
+    assertArrayEquals(doubles, (double[]) roundtripFile(doubles), 0.0);
+
+    long[] longs = {Long.MIN_VALUE, 0, 42};
+    assertArrayEquals(longs, (long[]) roundtripFile(longs));
+
+    char[] chars = "hype".toCharArray();
+    assertArrayEquals(chars, (char[]) roundtripFile(chars));
+
+    int[] empty = {};
+    assertArrayEquals(empty, (int[]) roundtripFile(empty));
+  }
+
+  @Test
+  public void mapsByteBuffers() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    for (int i = 0; i < buffer.capacity(); i++) {
+      buffer.put((byte) i);
+    }
+    buffer.flip();
+    buffer.position(24);
+
+    Object read = roundtripFile(buffer);
+    assertTrue(read instanceof MappedByteBuffer);
+    assertEquals(buffer, read);
+    assertEquals(24, buffer.position());
+  }
+
+  @Test
+  public void roundtripRawValuesThroughStreams() throws Exception {
+    float[] floats = {1f, 2f, 3f};
+    assertArrayEquals(floats, (float[]) roundtripStream(floats), 0f);
+
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3});
+    assertEquals(buffer, roundtripStream(buffer));
+  }
+
+  @Test
+  public void roundtripNull() throws Exception {
+    assertNull(roundtripFile(null));
+    assertNull(roundtripStream(null));
+  }
+
+  private Object roundtripFile(Object value) throws Exception {
+    Path path = Files.createTempFile("value-", ".bin");
+    SerializationUtil.serializeObject(value, path);
+    return SerializationUtil.readObject(path);
+  }
+
+  private Object roundtripStream(Object value) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SerializationUtil.serializeObject(value, output);
+    return SerializationUtil.readObject(new ByteArrayInputStream(output.toByteArray()));
+  }
+
   private Fn<String> roundtrip(Fn<String> fn) {
     Path path = SerializationUtil.serializeContinuation(fn);
     return (Fn<String>) SerializationUtil.readContinuation(path);
@@ -0,0 +1,137 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class StagedClassLoaderTest {
+
+  @Rule
+  public ExpectedException exception = ExpectedException.none();
+
+  private Path stagingDir;
+  private Path jar1;
+  private Path jar2;
+
+  @Before
+  public void setUp() throws Exception {
+    stagingDir = Files.createTempDirectory("unit-test");
+    jar1 = stagingDir.resolve("jar1.jar");
+    jar2 = stagingDir.resolve("jar2.jar");
+    System.setProperty(StagedClassLoader.CLASSPATH_PROPERTY,
+        jar1 + File.pathSeparator + jar2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    System.clearProperty(StagedClassLoader.CLASSPATH_PROPERTY);
+  }
+
+  @Test
+  public void waitsForJarsInClasspathOrder() throws Exception {
+    StagedClassLoader classLoader = StagedClassLoader.fromSystemProperty(stagingDir, null);
+
+    CompletableFuture<URL> resource =
+        CompletableFuture.supplyAsync(() -> classLoader.getResource("resource.txt"));
+
+    writeJar(jar2, "resource.txt", "from jar2");
+    Thread.sleep(100);
+    writeJar(jar1, "resource.txt", "from jar1");
+
+    URL url = resource.get();
+    assertNotNull(url);
+    assertEquals("from jar1", read(url));
+  }
+
+  @Test
+  public void doesNotWaitForJarsAfterMatch() throws Exception {
+    writeJar(jar1, "resource.txt", "from jar1");
+    StagedClassLoader classLoader = StagedClassLoader.fromSystemProperty(stagingDir, null);
+
+    URL url = classLoader.getResource("resource.txt");
+    assertEquals("from jar1", read(url));
+  }
+
+  @Test
+  public void failsWhenDownloadFailed() throws Exception {
+    Files.createFile(stagingDir.resolve(StagedClassLoader.FAILED_MARKER));
+    StagedClassLoader classLoader = StagedClassLoader.fromSystemProperty(stagingDir, null);
+
+    exception.expect(IllegalStateException.class);
+    classLoader.getResource("resource.txt");
+  }
+
+  @Test
+  public void failsWaitingLookupsWhenDownloadFails() throws Exception {
+    StagedClassLoader classLoader = StagedClassLoader.fromSystemProperty(stagingDir, null);
+
+    CompletableFuture<URL> resource =
+        CompletableFuture.supplyAsync(() -> classLoader.getResource("resource.txt"));
+    Thread.sleep(100);
+    Files.createFile(stagingDir.resolve(StagedClassLoader.FAILED_MARKER));
+
+    try {
+      resource.get(10, TimeUnit.SECONDS);
+      fail("lookup should fail");
+    } catch (ExecutionException e) {
+      assertEquals(IllegalStateException.class, e.getCause().getClass());
+    }
+  }
+
+  private static void writeJar(Path jar, String entry, String content) throws IOException {
+    Path tmp = Files.createTempFile("jar", ".part");
+    try (OutputStream out = Files.newOutputStream(tmp);
+         ZipOutputStream zos = new ZipOutputStream(out)) {
+      zos.putNextEntry(new ZipEntry(entry));
+      zos.write(content.getBytes(UTF_8));
+    }
+    Files.move(tmp, jar, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String read(URL url) throws IOException {
+    try (InputStream in = url.openStream()) {
+      return new String(ByteStreams.toByteArray(in), UTF_8);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*-
+ * -\-\-
+ * hype-common
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class StagedFilesTest {
+
+  private static final String HASH = "zvIiMfsVnVYbjTmbzgYUvw";
+
+  @Rule
+  public ExpectedException exception = ExpectedException.none();
+
+  private Path stagingDir;
+
+  @Before
+  public void setUp() throws Exception {
+    stagingDir = Files.createTempDirectory("unit-test");
+  }
+
+  @Test
+  public void findsStagedFile() throws Exception {
+    Path file = Files.createFile(stagingDir.resolve("data-" + HASH + ".csv"));
+    Files.createFile(stagingDir.resolve("data-" + HASH + ".csv.part"));
+
+    assertEquals(file, StagedFiles.get(stagingDir, "data.csv"));
+  }
+
+  @Test
+  public void findsStagedDirectory() throws Exception {
+    Path directory = Files.createDirectory(stagingDir.resolve("dataset-" + HASH));
+    Files.createFile(stagingDir.resolve("dataset-" + HASH + ".jar"));
+
+    assertEquals(directory, StagedFiles.get(stagingDir, "dataset"));
+  }
+
+  @Test
+  public void failsForMissingFile() throws Exception {
+    Files.createFile(stagingDir.resolve("other-" + HASH + ".csv"));
+
+    exception.expect(IllegalArgumentException.class);
+    exception.expectMessage("No staged file data.csv");
+    StagedFiles.get(stagingDir, "data.csv");
+  }
+}
@@ -0,0 +1,183 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.stream.Collectors.toList;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.spotify.hype.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a large file as chunks in parallel, and composes them into the target object.
+ *
+ * <p>On GCS the chunks are composed server-side. Other file systems, e.g. the local one used in
+ * tests, get the chunks concatenated into the target through the file system.
+ *
+ * <p>Chunk names get a random component per upload, so concurrent uploads of the same target do
+ * not overwrite each other's chunks. The target is composed only if it does not exist yet, which
+ * is the case when a concurrent upload of the same content already composed it.
+ */
+final class CompositeUpload {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompositeUpload.class);
+
+  /**
+   * The maximum number of source objects in a GCS compose request.
+   */
+  static final int MAX_COMPONENTS = 32;
+
+  private static final long MIN_CHUNK_SIZE = 8 * 1024 * 1024;
+  private static final String CHUNK_EXT = ".chunk-";
+  private static final String BINARY = "application/octet-stream";
+  private static final int PRECONDITION_FAILED = 412;
+
+  private CompositeUpload() {
+  }
+
+  /**
+   * Returns the chunk size to split a file of the given size into.
+   */
+  static long chunkSize(long size) {
+    return Math.max(MIN_CHUNK_SIZE, (size + MAX_COMPONENTS - 1) / MAX_COMPONENTS);
+  }
+
+  /**
+   * Uploads the file to the target path in chunks of {@code chunkSize} bytes.
+   *
+   * <p>The chunks are uploaded with {@link IoExecutors#forEachChunk}, so this can safely be
+   * called from a task running on {@code executor}.
+   *
+   * @param options The options for opening the target on non-GCS file systems.
+   */
+  static void upload(
+      File file, Path targetPath, long chunkSize, ExecutorService executor,
+      OpenOption... options)
+      throws IOException, InterruptedException {
+    final long size = file.length();
+    final int numChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    checkArgument(numChunks <= MAX_COMPONENTS,
+        "Can't split %s bytes into %s chunks of %s bytes", size, MAX_COMPONENTS, chunkSize);
+
+    final String uploadId = Util.randomAlphaNumeric(8);
+    final List<Path> chunks = IntStream.range(0, numChunks)
+        .mapToObj(i -> targetPath.resolveSibling(
+            targetPath.getFileName() + CHUNK_EXT + uploadId + "-" + String.format("%02d", i)))
+        .collect(toList());
+
+    LOG.debug("Uploading {} in {} chunks to {}", file, numChunks, targetPath);
+
+    try {
+      IoExecutors.forEachChunk(numChunks, executor, i -> {
+        final long position = i * chunkSize;
+        uploadChunk(file, chunks.get(i), position, Math.min(chunkSize, size - position));
+      });
+
+      compose(chunks, targetPath, options);
+    } finally {
+      for (Path chunk : chunks) {
+        try {
+          Files.deleteIfExists(chunk);
+        } catch (IOException e) {
+          LOG.warn("Failed to delete chunk {}", chunk, e);
+        }
+      }
+    }
+  }
+
+  private static void uploadChunk(File file, Path chunkPath, long position, long count)
+      throws IOException {
+    try (FileChannel source = FileChannel.open(file.toPath(), READ);
+         WritableByteChannel target = Files.newByteChannel(
+             chunkPath, WRITE, CREATE, TRUNCATE_EXISTING)) {
+      long transferred = 0;
+      while (transferred < count) {
+        transferred += source.transferTo(position + transferred, count - transferred, target);
+      }
+    }
+  }
+
+  private static void compose(List<Path> chunks, Path targetPath, OpenOption... options)
+      throws IOException {
+    final URI target = targetPath.toUri();
+    if ("gs".equals(target.getScheme())) {
+      final String bucket = target.getHost();
+      final List<String> sources = chunks.stream()
+          .map(chunk -> objectName(chunk.toUri()))
+          .collect(toList());
+      try {
+        DefaultStorage.STORAGE.compose(Storage.ComposeRequest.newBuilder()
+            .addSource(sources)
+            .setTarget(BlobInfo.newBuilder(bucket, objectName(target))
+                .setContentType(BINARY)
+                .build())
+            .setTargetOptions(Storage.BlobTargetOption.doesNotExist())
+            .build());
+      } catch (StorageException e) {
+        if (e.getCode() == PRECONDITION_FAILED) {
+          LOG.debug("{} was already composed by a concurrent upload", target);
+          return;
+        }
+        throw new IOException("Failed to compose " + target, e);
+      }
+    } else {
+      try (OutputStream out = Files.newOutputStream(targetPath, options)) {
+        for (Path chunk : chunks) {
+          Files.copy(chunk, out);
+        }
+      }
+    }
+  }
+
+  private static String objectName(URI uri) {
+    return uri.getPath().substring(1);
+  }
+
+  /**
+   * The client for compose requests, created on first use with the default project and
+   * credentials, the same defaults the GCS file system provider uses for the chunk uploads.
+   */
+  private static final class DefaultStorage {
+
+    private static final Storage STORAGE = StorageOptions.getDefaultInstance().getService();
+  }
+}
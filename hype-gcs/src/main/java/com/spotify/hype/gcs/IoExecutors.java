@@ -0,0 +1,144 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for the bounded executors used for blocking staging and download I/O.
+ *
+ * <p>The defaults can be tuned with system properties, e.g. through {@code JVM_ARGS} in the
+ * hype-run container:
+ * <ul>
+ *   <li>{@code hype.io.parallelism} - the maximum number of concurrent transfers (default 32)</li>
+ *   <li>{@code hype.io.virtualThreads} - run transfers on virtual threads, if the JVM supports
+ *       them (default false)</li>
+ * </ul>
+ */
+public final class IoExecutors {
+
+  private static final Logger LOG = LoggerFactory.getLogger(IoExecutors.class);
+
+  public static final String PARALLELISM_PROPERTY = "hype.io.parallelism";
+  public static final String VIRTUAL_THREADS_PROPERTY = "hype.io.virtualThreads";
+
+  static final int DEFAULT_PARALLELISM = 32;
+
+  private IoExecutors() {
+  }
+
+  /**
+   * Creates an executor configured by the system properties.
+   */
+  public static ExecutorService fromSystemProperties(String name) {
+    final int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, DEFAULT_PARALLELISM);
+    return Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)
+           ? virtualThreads(name, parallelism)
+           : platformThreads(name, parallelism);
+  }
+
+  /**
+   * Creates an executor running at most {@code parallelism} transfers on daemon threads.
+   */
+  public static ExecutorService platformThreads(String name, int parallelism) {
+    return Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+        .setNameFormat(name + "-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  /**
+   * Creates an executor running at most {@code parallelism} transfers on virtual threads. Falls
+   * back to platform threads on JVMs without virtual thread support.
+   */
+  public static ExecutorService virtualThreads(String name, int parallelism) {
+    final ThreadFactory factory;
+    try {
+      // reflective to keep compiling for java 8
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Object named = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, name + "-", 0L);
+      factory = (ThreadFactory) builderClass.getMethod("factory").invoke(named);
+    } catch (ReflectiveOperationException e) {
+      LOG.warn("Virtual threads are not supported on Java {}, using platform threads",
+          System.getProperty("java.version"));
+      return platformThreads(name, parallelism);
+    }
+
+    return Executors.newFixedThreadPool(parallelism, factory);
+  }
+
+  /**
+   * Runs {@code task} for each chunk index in {@code [0, numChunks)} in parallel on the executor.
+   *
+   * <p>The calling thread processes chunks as well, and only waits for chunks that other threads
+   * have started, so this can safely be called from a task running on {@code executor}.
+   */
+  static void forEachChunk(int numChunks, ExecutorService executor, ChunkTask task)
+      throws IOException, InterruptedException {
+    final AtomicInteger nextChunk = new AtomicInteger();
+    final CountDownLatch processedChunks = new CountDownLatch(numChunks);
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final Runnable worker = () -> {
+      int chunk;
+      while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+        try {
+          if (failure.get() == null) {
+            task.run(chunk);
+          }
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          processedChunks.countDown();
+        }
+      }
+    };
+
+    for (int i = 1; i < numChunks; i++) {
+      executor.execute(worker);
+    }
+    worker.run();
+    processedChunks.await();
+
+    final Exception e = failure.get();
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    } else if (e != null) {
+      throw new IOException(e);
+    }
+  }
+
+  @FunctionalInterface
+  interface ChunkTask {
+
+    void run(int chunk) throws IOException;
+  }
+}
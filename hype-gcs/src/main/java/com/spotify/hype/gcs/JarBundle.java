@@ -0,0 +1,157 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs small jars into one archive, so that they are staged and downloaded as a single object.
+ *
+ * <p>The jars are stored uncompressed under their unique content names, e.g.
+ * {@code lib-<content-hash>.jar}, which are also the names of the jars in the run manifest. The
+ * archive is deterministic, so bundling the same jars again gives the same content hash.
+ */
+final class JarBundle {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JarBundle.class);
+
+  static final String BUNDLE_NAME = "bundle.zip";
+
+  private static final String PART_EXT = ".part";
+
+  private final File file;
+  private final Map<String, String> entryNames;
+
+  private JarBundle(File file, Map<String, String> entryNames) {
+    this.file = file;
+    this.entryNames = entryNames;
+  }
+
+  /**
+   * Returns the local bundle file.
+   */
+  File file() {
+    return file;
+  }
+
+  /**
+   * Returns the name of the entry for the given jar in the bundle.
+   */
+  String entryName(String jar) {
+    return entryNames.get(jar);
+  }
+
+  /**
+   * Creates a bundle of the given jars in {@code directory}.
+   *
+   * @param jars The jars to bundle, with their unique content names.
+   */
+  static JarBundle create(Map<String, String> jars, Path directory) throws IOException {
+    final File bundle = directory.resolve(BUNDLE_NAME).toFile();
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(bundle.toPath()))) {
+      for (Map.Entry<String, String> jar : jars.entrySet()) {
+        final File file = new File(jar.getKey());
+        final ZipEntry entry = new ZipEntry(jar.getValue());
+        entry.setTime(ZipFiles.ENTRY_TIME);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(file.length());
+        entry.setCrc(
+            com.google.common.io.Files.asByteSource(file).hash(Hashing.crc32()).padToLong());
+        out.putNextEntry(entry);
+        Files.copy(file.toPath(), out);
+        out.closeEntry();
+      }
+    }
+
+    LOG.debug("Bundled {} jars into {} bytes", jars.size(), bundle.length());
+    return new JarBundle(bundle, new LinkedHashMap<>(jars));
+  }
+
+  /**
+   * Extracts the given entries of a downloaded bundle to the destination directory.
+   *
+   * <p>Each jar appears in the destination directory atomically once it is completely extracted
+   * and verified against the content hash in its name.
+   */
+  static void extract(Path bundle, Collection<String> entries, Path destinationDir)
+      throws IOException {
+    try (ZipFile zipFile = new ZipFile(bundle.toFile())) {
+      for (String name : entries) {
+        final ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null) {
+          throw new IOException("No " + name + " in bundle " + bundle);
+        }
+
+        final Path destinationFile = destinationDir.resolve(name);
+        final Path partFile = destinationDir.resolve(name + PART_EXT);
+        try (InputStream in = zipFile.getInputStream(entry);
+             OutputStream out = Files.newOutputStream(partFile)) {
+          ByteStreams.copy(in, out);
+        }
+
+        final String expectedHash = StagingUtil.getContentHash(name)
+            .orElseThrow(() -> new IOException("No content hash in bundled jar name " + name));
+        final String hash = StagingUtil.contentHash(partFile.toFile());
+        if (!expectedHash.equals(hash)) {
+          Files.delete(partFile);
+          throw new IOException("Checksum mismatch for " + name + " in " + bundle
+                                + ", expected " + expectedHash + " but got " + hash);
+        }
+
+        Files.move(partFile, destinationFile, REPLACE_EXISTING, ATOMIC_MOVE);
+      }
+    }
+  }
+
+  /**
+   * Returns the jars among the classpath elements that are smaller than {@code threshold} bytes.
+   * Elements with an overridden package name are never bundled.
+   */
+  static List<String> smallJars(Collection<String> classpathElements, long threshold) {
+    return classpathElements.stream()
+        .filter(element -> !element.contains("=") && element.endsWith(".jar"))
+        .filter(element -> {
+          final File file = new File(element);
+          return file.isFile() && file.length() < threshold;
+        })
+        .collect(toList());
+  }
+}
@@ -0,0 +1,290 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stages a directory classpath element as one content addressed object per file, so that only
+ * changed files are uploaded and downloaded.
+ *
+ * <p>Instead of the zipped directory, an index is staged next to where the zip would be, with
+ * the {@link #INDEX_EXT} extension. Each line of the index is one of
+ * <pre>
+ * c &lt;compression-level&gt;
+ * f &lt;content-hash&gt; &lt;relative-path&gt;
+ * d &lt;relative-path&gt;
+ * </pre>
+ * for the zip compression level, a file or an empty directory. File contents are staged in a
+ * {@code blobs} directory next to the index, named by their content hash.
+ *
+ * <p>The zip is rebuilt from the index with {@link ZipFiles#zipDirectory(File, OutputStream)}
+ * at the recorded compression level. Each file is verified against its content hash, but the
+ * rebuilt zip is not checked against the hash of the zip that was not staged, as deflated bytes
+ * can differ between zlib versions.
+ *
+ * <p>Blobs are cached on the node by content hash, in the directory set with the
+ * {@code hype.layers.cacheDir} system property, so only changed files are downloaded when the
+ * zip is rebuilt.
+ */
+final class LayeredDirectory {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LayeredDirectory.class);
+
+  static final String INDEX_EXT = ".layers";
+
+  private static final String BLOBS_DIR = "blobs";
+  private static final String COMPRESSION_LEVEL = "c";
+  private static final String FILE = "f";
+  private static final String EMPTY_DIRECTORY = "d";
+
+  private static final Path BLOB_CACHE_DIR = Paths.get(System.getProperty(
+      "hype.layers.cacheDir",
+      Paths.get(System.getProperty("java.io.tmpdir"), "hype-layers").toString()));
+
+  /**
+   * Blobs known to be staged by this process, as blob paths.
+   */
+  private static final Set<String> STAGED_BLOBS = ConcurrentHashMap.newKeySet();
+
+  private LayeredDirectory() {
+  }
+
+  /**
+   * Returns the path of the index for a zip staged at {@code target}.
+   */
+  static Path indexPath(Path target) {
+    return target.resolveSibling(target.getFileName() + INDEX_EXT);
+  }
+
+  /**
+   * Stages the files of the directory and an index for rebuilding the zipped directory at
+   * {@code target}. Only files that are not already staged are uploaded.
+   */
+  static void stage(File directory, Path target, ExecutorService executor)
+      throws IOException, InterruptedException {
+    final Path root = directory.toPath();
+    final List<String> index = new ArrayList<>();
+    final List<Path> files = new ArrayList<>();
+    final List<String> hashes = new ArrayList<>();
+    index.add(COMPRESSION_LEVEL + " " + ZipFiles.COMPRESSION_LEVEL);
+
+    try (Stream<Path> paths = Files.walk(root, FileVisitOption.FOLLOW_LINKS)) {
+      for (Path path : paths.sorted().collect(toList())) {
+        final String relativePath =
+            root.relativize(path).toString().replace(File.separatorChar, '/');
+        if (Files.isRegularFile(path)) {
+          final String hash = StagingUtil.contentHash(path.toFile());
+          index.add(FILE + " " + hash + " " + relativePath);
+          files.add(path);
+          hashes.add(hash);
+        } else if (!path.equals(root) && isEmptyDirectory(path)) {
+          index.add(EMPTY_DIRECTORY + " " + relativePath);
+        }
+      }
+    }
+
+    final List<Integer> missing = missingBlobs(target, hashes, executor);
+
+    LOG.debug("Uploading {} of {} files in {} to {}",
+        missing.size(), files.size(), directory, target);
+
+    Files.createDirectories(target.resolveSibling(BLOBS_DIR));
+    IoExecutors.forEachChunk(missing.size(), executor, i -> {
+      final int file = missing.get(i);
+      final Path blob = blobPath(target, hashes.get(file));
+      Files.copy(files.get(file), blob, REPLACE_EXISTING);
+      STAGED_BLOBS.add(blob.toUri().toString());
+    });
+
+    // written last, so that an existing index means all blobs are staged
+    Files.write(indexPath(target), index, UTF_8);
+  }
+
+  /**
+   * Rebuilds the zip staged at {@code target} from its index and writes it to {@code zipFile}.
+   * The zip file is removed if rebuilding fails. The contents of the zip are verified, but its
+   * bytes only match the zip that was not staged if the local zlib deflates the same way.
+   */
+  static void rebuild(Path target, Path zipFile, ExecutorService executor) throws IOException {
+    rebuild(target, zipFile, BLOB_CACHE_DIR, executor);
+  }
+
+  /**
+   * Rebuilds the zip, downloading only the blobs that are not in {@code cacheDir} yet.
+   */
+  static void rebuild(Path target, Path zipFile, Path cacheDir, ExecutorService executor)
+      throws IOException {
+    final List<String> index = Files.readAllLines(indexPath(target), UTF_8);
+    final Path tree = Files.createTempDirectory(zipFile.getParent(), ".layers");
+    boolean completed = false;
+    try {
+      final List<Path> files = new ArrayList<>();
+      final List<String> hashes = new ArrayList<>();
+      int level = Deflater.DEFAULT_COMPRESSION;
+      for (String line : index) {
+        final String[] parts = line.split(" ", 3);
+        if (COMPRESSION_LEVEL.equals(parts[0])) {
+          level = ZipFiles.compressionLevel(Integer.parseInt(parts[1]));
+        } else if (FILE.equals(parts[0])) {
+          final Path file = resolve(tree, parts[2]);
+          Files.createDirectories(file.getParent());
+          files.add(file);
+          hashes.add(parts[1]);
+        } else if (EMPTY_DIRECTORY.equals(parts[0])) {
+          Files.createDirectories(resolve(tree, parts[1]));
+        } else {
+          throw new IOException("Invalid line in " + indexPath(target) + ": " + line);
+        }
+      }
+
+      final List<String> uniqueHashes = new ArrayList<>(new LinkedHashSet<>(hashes));
+      Files.createDirectories(cacheDir);
+      IoExecutors.forEachChunk(uniqueHashes.size(), executor, i ->
+          cacheBlob(target, uniqueHashes.get(i), cacheDir));
+      for (int i = 0; i < files.size(); i++) {
+        Files.copy(cacheDir.resolve(hashes.get(i)), files.get(i), REPLACE_EXISTING);
+      }
+
+      try (OutputStream out = Files.newOutputStream(zipFile)) {
+        ZipFiles.zipDirectory(tree.toFile(), out, level, ZipFiles.EXECUTOR);
+      }
+      completed = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while rebuilding " + target, e);
+    } finally {
+      if (!completed) {
+        Files.deleteIfExists(zipFile);
+      }
+      try (Stream<Path> paths = Files.walk(tree)) {
+        for (Path path : paths.sorted(Comparator.reverseOrder()).collect(toList())) {
+          Files.delete(path);
+        }
+      }
+    }
+  }
+
+  private static Path blobPath(Path target, String hash) {
+    return target.resolveSibling(BLOBS_DIR).resolve(hash);
+  }
+
+  /**
+   * Returns the indices of the hashes that have no staged blob yet. Only the given hashes are
+   * checked, so the cost does not grow with the number of blobs staged over time.
+   */
+  private static List<Integer> missingBlobs(
+      Path target, List<String> hashes, ExecutorService executor)
+      throws IOException, InterruptedException {
+    final Map<String, Integer> unchecked = new LinkedHashMap<>();
+    for (int i = 0; i < hashes.size(); i++) {
+      if (!STAGED_BLOBS.contains(blobPath(target, hashes.get(i)).toUri().toString())) {
+        unchecked.putIfAbsent(hashes.get(i), i);
+      }
+    }
+
+    final List<Integer> indices = new ArrayList<>(unchecked.values());
+    final boolean[] exists = new boolean[indices.size()];
+    IoExecutors.forEachChunk(indices.size(), executor, i -> {
+      final Path blob = blobPath(target, hashes.get(indices.get(i)));
+      exists[i] = Files.exists(blob);
+      if (exists[i]) {
+        STAGED_BLOBS.add(blob.toUri().toString());
+      }
+    });
+
+    final List<Integer> missing = new ArrayList<>();
+    for (int i = 0; i < indices.size(); i++) {
+      if (!exists[i]) {
+        missing.add(indices.get(i));
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Makes sure the blob is in the cache directory, downloading it if it is missing or does not
+   * match its hash.
+   */
+  private static void cacheBlob(Path target, String hash, Path cacheDir) throws IOException {
+    final Path cached = cacheDir.resolve(hash);
+    if (Files.exists(cached) && hash.equals(StagingUtil.contentHash(cached.toFile()))) {
+      return;
+    }
+
+    final Path tmp = Files.createTempFile(cacheDir, ".blob", ".tmp");
+    try {
+      Files.copy(blobPath(target, hash), tmp, REPLACE_EXISTING);
+      final String downloadedHash = StagingUtil.contentHash(tmp.toFile());
+      if (!hash.equals(downloadedHash)) {
+        throw new IOException("Checksum mismatch for blob " + hash + " of " + target
+                              + ", got " + downloadedHash);
+      }
+      Files.move(tmp, cached, REPLACE_EXISTING, ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static boolean isEmptyDirectory(Path path) throws IOException {
+    if (!Files.isDirectory(path)) {
+      return false;
+    }
+    try (Stream<Path> children = Files.list(path)) {
+      return !children.findAny().isPresent();
+    }
+  }
+
+  /**
+   * Resolves a relative path from an index, refusing paths outside of the tree.
+   */
+  private static Path resolve(Path tree, String relativePath) throws IOException {
+    final Path path = tree.resolve(relativePath).normalize();
+    if (!path.startsWith(tree) || path.equals(tree)) {
+      throw new IOException("Illegal path in index: " + relativePath);
+    }
+    return path;
+  }
+}
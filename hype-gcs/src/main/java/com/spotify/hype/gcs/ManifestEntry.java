@@ -0,0 +1,67 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import io.norberg.automatter.AutoMatter;
+
+/**
+ * The size, content hash, compression and role of a staged file in a {@link RunManifest}.
+ */
+@AutoMatter
+public interface ManifestEntry {
+
+  Role role();
+
+  long size();
+
+  /**
+   * The url-safe base64 encoded md5 hash of the staged content.
+   */
+  String hash();
+
+  Compression compression();
+
+  enum Role {
+    CONTINUATION,
+    CLASSPATH,
+    FILE
+  }
+
+  /**
+   * How the original file was turned into the staged content.
+   */
+  enum Compression {
+    /**
+     * Staged as-is.
+     */
+    NONE,
+
+    /**
+     * A directory staged as a deterministic zip.
+     */
+    ZIP,
+
+    /**
+     * A directory zip that is staged as separate files, see {@link LayeredDirectory}.
+     */
+    LAYERS
+  }
+}
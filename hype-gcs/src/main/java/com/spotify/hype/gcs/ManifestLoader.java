@@ -20,48 +20,403 @@
 
 package com.spotify.hype.gcs;
 
-import static com.google.common.collect.Iterables.concat;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.stream.Collectors.toList;
 
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.Sleeper;
+import com.google.common.io.ByteStreams;
+import com.spotify.hype.FluentBackoff;
+import com.spotify.hype.gcs.ManifestEntry.Compression;
+import com.spotify.hype.gcs.ManifestEntry.Role;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ExecutorService;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public final class ManifestLoader {
 
-  private static final ForkJoinPool FJP = new ForkJoinPool(32);
+  private static final Logger LOG = LoggerFactory.getLogger(ManifestLoader.class);
+
+  private static final ExecutorService DEFAULT_EXECUTOR =
+      IoExecutors.fromSystemProperties("hype-download");
+  private static final String PART_EXT = ".part";
+
+  /**
+   * Files of at least this many bytes are downloaded as parallel ranged reads. Configurable with
+   * the {@code hype.download.rangedThreshold} system property.
+   */
+  private static final long RANGED_DOWNLOAD_THRESHOLD =
+      Long.getLong("hype.download.rangedThreshold", 64 * 1024 * 1024);
+  private static final long RANGE_SIZE = 16 * 1024 * 1024;
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * The initial interval to use between download attempts.
+   */
+  private static final Duration INITIAL_BACKOFF_INTERVAL = Duration.standardSeconds(1);
+  /**
+   * The maximum number of retries when downloading a file.
+   */
+  private static final int MAX_RETRIES = 5;
+
+  private static final FluentBackoff BACKOFF_FACTORY =
+      FluentBackoff.DEFAULT
+          .withMaxRetries(MAX_RETRIES).withInitialBackoff(INITIAL_BACKOFF_INTERVAL);
 
   public static RunManifest downloadManifest(Path manifestPath, Path destinationDir) throws IOException {
+    return downloadManifest(manifestPath, destinationDir, DEFAULT_EXECUTOR);
+  }
+
+  /**
+   * Downloads all files of a manifest, running the downloads on the given executor.
+   */
+  public static RunManifest downloadManifest(
+      Path manifestPath, Path destinationDir, ExecutorService executor) throws IOException {
     final RunManifest manifest = ManifestUtil.read(manifestPath);
 
-    final Set<Path> manifestEntries = new LinkedHashSet<>();
-    manifestEntries.add(manifestPath.resolveSibling(manifest.continuation()));
-    for (String file : concat(manifest.classPathFiles(), manifest.files())) {
-      manifestEntries.add(manifestPath.resolveSibling(file));
+    final Map<Path, Runnable> downloads = new LinkedHashMap<>();
+    addFileDownload(downloads, manifestPath, manifest, manifest.continuation(),
+        destinationDir, executor);
+    classPathDownloads(manifestPath, manifest, destinationDir, executor)
+        .forEach(downloads::putIfAbsent);
+    for (String file : manifest.files()) {
+      addFileDownload(downloads, manifestPath, manifest, file, destinationDir, executor);
+    }
+
+    downloadAll(downloads.values(), executor);
+
+    return manifest;
+  }
+
+  /**
+   * Downloads the continuation and regular files of a manifest, and starts downloading the
+   * classpath files in the background, in classpath order.
+   *
+   * <p>Each file appears in the destination directory atomically once it is completely
+   * downloaded, so consumers can start using the classpath before all of it is available.
+   *
+   * @return a future that completes when all classpath files have been downloaded
+   */
+  public static CompletableFuture<Void> downloadManifestLazily(
+      Path manifestPath, RunManifest manifest, Path destinationDir) {
+    return downloadManifestLazily(manifestPath, manifest, destinationDir, DEFAULT_EXECUTOR);
+  }
+
+  /**
+   * Like {@link #downloadManifestLazily(Path, RunManifest, Path)}, running the downloads on the
+   * given executor.
+   */
+  public static CompletableFuture<Void> downloadManifestLazily(
+      Path manifestPath, RunManifest manifest, Path destinationDir, ExecutorService executor) {
+    final Map<Path, Runnable> eagerDownloads = new LinkedHashMap<>();
+    addFileDownload(eagerDownloads, manifestPath, manifest, manifest.continuation(),
+        destinationDir, executor);
+    for (String file : manifest.files()) {
+      addFileDownload(eagerDownloads, manifestPath, manifest, file, destinationDir, executor);
     }
 
+    downloadAll(eagerDownloads.values(), executor);
+
+    final List<CompletableFuture<Void>> classPathDownloads =
+        classPathDownloads(manifestPath, manifest, destinationDir, executor).values().stream()
+            .map(download -> CompletableFuture.runAsync(download, executor))
+            .collect(toList());
+
+    return CompletableFuture.allOf(
+        classPathDownloads.toArray(new CompletableFuture[classPathDownloads.size()]));
+  }
+
+  private static void downloadAll(Collection<Runnable> downloads, ExecutorService executor) {
+    final List<CompletableFuture<Void>> futures = downloads.stream()
+        .map(download -> CompletableFuture.runAsync(download, executor))
+        .collect(toList());
+
     try {
-      FJP.submit(() -> manifestEntries.parallelStream()
-          .forEach(filePath -> downloadFile(filePath, destinationDir)))
-      .get();
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
     } catch (InterruptedException | ExecutionException e) {
       throw new RuntimeException(e);
     }
+  }
 
-    return manifest;
+  private static void addFileDownload(
+      Map<Path, Runnable> downloads, Path manifestPath, RunManifest manifest, String file,
+      Path destinationDir, ExecutorService executor) {
+    final Path filePath = manifestPath.resolveSibling(file);
+    final Optional<ManifestEntry> entry = Optional.ofNullable(manifest.entries().get(file));
+    downloads.putIfAbsent(filePath, () -> {
+      downloadFile(filePath, entry, destinationDir, executor);
+      if (entry.isPresent() && isDirectory(entry.get())) {
+        extractDirectory(destinationDir.resolve(file));
+      }
+    });
+  }
+
+  private static boolean isDirectory(ManifestEntry entry) {
+    return entry.role() == Role.FILE && entry.compression() != Compression.NONE;
   }
 
-  private static void downloadFile(Path filePath, Path destinationDir) {
-    final Path destinationFile = destinationDir.resolve(filePath.getFileName().toString());
+  /**
+   * Extracts a downloaded directory zip, e.g. {@code dir-<content-hash>.jar}, to a directory
+   * without the zip extension, e.g. {@code dir-<content-hash>}. The directory appears atomically
+   * once it is completely extracted.
+   */
+  private static void extractDirectory(Path zipFile) {
+    final String fileName = zipFile.getFileName().toString();
+    final Path directory = zipFile.resolveSibling(
+        com.google.common.io.Files.getNameWithoutExtension(fileName));
+    if (Files.isDirectory(directory)) {
+      return;
+    }
+
+    final Path partDirectory = zipFile.resolveSibling(directory.getFileName() + PART_EXT);
     try {
-      // todo: retries
-      Files.copy(filePath, destinationFile, StandardCopyOption.REPLACE_EXISTING);
+      Files.createDirectories(partDirectory);
+      ZipFiles.unzipFile(zipFile.toFile(), partDirectory.toFile());
+      Files.move(partDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      throw new RuntimeException("Failed to extract " + zipFile, e);
+    }
+  }
+
+  /**
+   * Returns the downloads of the classpath files in classpath order, keyed by the staged file.
+   * Bundled files are downloaded once per {@link JarBundle}, at the position of the first file
+   * in the bundle.
+   */
+  private static Map<Path, Runnable> classPathDownloads(
+      Path manifestPath, RunManifest manifest, Path destinationDir, ExecutorService executor) {
+    final Map<Path, Runnable> downloads = new LinkedHashMap<>();
+    final Map<Path, List<String>> bundles = new LinkedHashMap<>();
+    for (String file : manifest.classPathFiles()) {
+      final String bundle = manifest.bundledFiles().get(file);
+      if (bundle == null) {
+        addFileDownload(downloads, manifestPath, manifest, file, destinationDir, executor);
+      } else {
+        final Path bundlePath = manifestPath.resolveSibling(bundle);
+        final List<String> entries = bundles.computeIfAbsent(bundlePath, k -> new ArrayList<>());
+        entries.add(file);
+        downloads.putIfAbsent(bundlePath,
+            () -> downloadBundle(bundlePath, entries, destinationDir, executor));
+      }
+    }
+    return downloads;
+  }
+
+  /**
+   * Downloads a bundle and extracts the given jars from it to the destination directory.
+   */
+  private static void downloadBundle(
+      Path bundlePath, List<String> entries, Path destinationDir, ExecutorService executor) {
+    downloadFile(bundlePath, Optional.empty(), destinationDir, executor);
+
+    final Path localBundle = destinationDir.resolve(bundlePath.getFileName().toString());
+    try {
+      JarBundle.extract(localBundle, entries, destinationDir);
+      Files.delete(localBundle);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to extract " + bundlePath, e);
+    }
+  }
+
+  /**
+   * Downloads a file to the destination directory, retrying on failure.
+   *
+   * <p>Files with a content hash in their staged name are verified against it, and partially
+   * downloaded files from a failed attempt are resumed from where they stopped. Large files are
+   * downloaded in parallel ranges on the executor, and directories staged as a
+   * {@link LayeredDirectory} are rebuilt from their files. Rebuilt zips are verified by the
+   * content hashes of their files rather than by the zip hash, as deflated bytes depend on the
+   * local zlib.
+   *
+   * <p>When the manifest has an entry for the file, its size, hash and compression are used
+   * instead of looking them up remotely, and a file that is already in the destination directory
+   * with the same size and hash is not downloaded again.
+   */
+  private static void downloadFile(
+      Path filePath, Optional<ManifestEntry> entry, Path destinationDir,
+      ExecutorService executor) {
+    final String fileName = filePath.getFileName().toString();
+    final Path destinationFile = destinationDir.resolve(fileName);
+    final Path partFile = destinationDir.resolve(fileName + PART_EXT);
+    final Optional<String> expectedHash = entry.isPresent()
+        ? Optional.of(entry.get().hash())
+        : StagingUtil.getContentHash(fileName);
+
+    if (entry.isPresent() && isDownloaded(destinationFile, entry.get())) {
+      LOG.debug("Skipping download of {}, already in {}", filePath, destinationDir);
+      return;
+    }
+
+    final boolean layered = isLayered(filePath, entry);
+    Sleeper retrySleeper = Sleeper.DEFAULT;
+    BackOff backoff = BACKOFF_FACTORY.backoff();
+    while (true) {
+      try {
+        // only content addressed files can be safely resumed, as they are verified afterwards
+        if (!expectedHash.isPresent() || layered) {
+          Files.deleteIfExists(partFile);
+        }
+        if (layered) {
+          LayeredDirectory.rebuild(filePath, partFile, executor);
+        } else if (!Files.exists(partFile)
+                   && size(filePath, entry) >= RANGED_DOWNLOAD_THRESHOLD) {
+          downloadRanges(filePath, size(filePath, entry), partFile, RANGE_SIZE, executor);
+        } else {
+          resumeDownload(filePath, partFile);
+        }
+
+        if (expectedHash.isPresent() && !layered) {
+          final String hash = StagingUtil.contentHash(partFile.toFile());
+          if (!expectedHash.get().equals(hash)) {
+            Files.delete(partFile);
+            throw new IOException("Checksum mismatch for " + filePath + ", expected "
+                                  + expectedHash.get() + " but got " + hash);
+          }
+        }
+
+        Files.move(partFile, destinationFile,
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return;
+      } catch (IOException e) {
+        try {
+          long sleep = backoff.nextBackOffMillis();
+          if (sleep == BackOff.STOP) {
+            LOG.error("Download failed, will NOT retry downloading {}", filePath, e);
+            throw new RuntimeException("Failed to download " + filePath, e);
+          } else {
+            LOG.warn("Download attempt failed, sleeping before retrying {}", filePath, e);
+            retrySleeper.sleep(sleep);
+          }
+        } catch (IOException | InterruptedException ie) {
+          throw new RuntimeException("Failed to download " + filePath, ie);
+        }
+      }
+    }
+  }
+
+  private static boolean isLayered(Path filePath, Optional<ManifestEntry> entry) {
+    if (entry.isPresent()) {
+      return entry.get().compression() == Compression.LAYERS;
+    }
+    return Files.notExists(filePath) && Files.exists(LayeredDirectory.indexPath(filePath));
+  }
+
+  private static long size(Path filePath, Optional<ManifestEntry> entry) throws IOException {
+    return entry.isPresent() ? entry.get().size() : Files.size(filePath);
+  }
+
+  private static boolean isDownloaded(Path file, ManifestEntry entry) {
+    try {
+      return Files.exists(file)
+             && Files.size(file) == entry.size()
+             && StagingUtil.contentHash(file.toFile()).equals(entry.hash());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Downloads the source file in ranges of {@code rangeSize} bytes in parallel, writing each at
+   * its offset into the preallocated partial file.
+   *
+   * <p>The partial file can not be resumed as it already has its full size, so it is removed if
+   * any of the ranges fail.
+   */
+  static void downloadRanges(
+      Path filePath, Path partFile, long rangeSize, ExecutorService executor)
+      throws IOException {
+    downloadRanges(filePath, Files.size(filePath), partFile, rangeSize, executor);
+  }
+
+  private static void downloadRanges(
+      Path filePath, long size, Path partFile, long rangeSize, ExecutorService executor)
+      throws IOException {
+    final int numRanges = (int) Math.max(1, (size + rangeSize - 1) / rangeSize);
+
+    LOG.debug("Downloading {} in {} ranges", filePath, numRanges);
+
+    boolean completed = false;
+    try (RandomAccessFile file = new RandomAccessFile(partFile.toFile(), "rw")) {
+      file.setLength(size);
+      final FileChannel target = file.getChannel();
+
+      IoExecutors.forEachChunk(numRanges, executor, i -> {
+        final long position = i * rangeSize;
+        downloadRange(filePath, target, position, Math.min(rangeSize, size - position));
+      });
+      completed = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading " + filePath, e);
+    } finally {
+      if (!completed) {
+        Files.deleteIfExists(partFile);
+      }
+    }
+  }
+
+  private static void downloadRange(Path filePath, FileChannel target, long position, long count)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, count));
+    try (SeekableByteChannel source = Files.newByteChannel(filePath)) {
+      source.position(position);
+      long offset = position;
+      while (offset < position + count) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), position + count - offset));
+        if (source.read(buffer) < 0) {
+          throw new IOException("Unexpected end of " + filePath + " at offset " + offset);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          offset += target.write(buffer, offset);
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends the remaining contents of the source file to the partial file.
+   */
+  private static void resumeDownload(Path filePath, Path partFile) throws IOException {
+    final long offset = Files.exists(partFile) ? Files.size(partFile) : 0;
+
+    try (SeekableByteChannel source = Files.newByteChannel(filePath)) {
+      if (offset > 0) {
+        if (offset > source.size()) {
+          Files.delete(partFile);
+          throw new IOException("Partial download " + partFile + " is larger than " + filePath);
+        }
+        LOG.debug("Resuming download of {} at offset {}", filePath, offset);
+        source.position(offset);
+      }
+
+      try (InputStream in = Channels.newInputStream(source);
+           OutputStream out = Files.newOutputStream(partFile, CREATE, WRITE, APPEND)) {
+        ByteStreams.copy(in, out);
+      }
     }
   }
 }
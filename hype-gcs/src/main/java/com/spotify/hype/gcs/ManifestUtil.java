@@ -20,10 +20,23 @@
 
 package com.spotify.hype.gcs;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.google.common.hash.Hashing;
+import com.spotify.hype.gcs.ManifestEntry.Compression;
+import com.spotify.hype.gcs.ManifestEntry.Role;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,50 +45,205 @@ class ManifestUtil {
 
   private static final Logger LOG = LoggerFactory.getLogger(ManifestUtil.class);
 
+  static final int VERSION = 2;
+
+  private static final char VERSION_LINE = 'v';
   private static final char LAMBDA = 'l';
   private static final char CLASSPATH_FILE = 'c';
   private static final char REGULAR_FILE = 'f';
+  private static final char BUNDLED_FILE = 'b';
+  private static final char CLASSPATH_SET = 's';
+  private static final char SERIALIZER = 'r';
 
-  static RunManifest read(Path manifestPath) throws IOException {
-    final Stream<String> lines = Files.lines(manifestPath);
+  private static final String CLASSPATH_SET_PREFIX = "classpath-";
+  private static final String CLASSPATH_SET_EXT = ".txt";
 
+  /**
+   * Classpath sets that were already written by this process.
+   */
+  private static final Set<Path> WRITTEN_CLASSPATH_SETS = ConcurrentHashMap.newKeySet();
+
+  static RunManifest read(Path manifestPath) throws IOException {
     final RunManifestBuilder builder = new RunManifestBuilder();
-    lines.forEachOrdered(line -> {
-      if (line.trim().isEmpty()) {
-        return;
-      }
+    readInto(builder, manifestPath);
+    return builder.build();
+  }
 
-      final String[] split = line.trim().split(" ", 2);
-      if (split.length != 2) {
-        throw new IllegalArgumentException("Malformed manifest line '" + line + "'");
-      }
+  private static void readInto(RunManifestBuilder builder, Path manifestPath) throws IOException {
+    int version = 1;
+
+    try (Stream<String> lines = Files.lines(manifestPath)) {
+      for (Iterator<String> it = lines.iterator(); it.hasNext(); ) {
+        final String line = it.next();
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+
+        final String[] split = line.trim().split(" ", 2);
+        if (split.length != 2) {
+          throw new IllegalArgumentException("Malformed manifest line '" + line + "'");
+        }
 
-      switch (split[0].charAt(0)) {
-        case LAMBDA:
-          builder.continuation(split[1]);
-          break;
+        switch (split[0].charAt(0)) {
+          case VERSION_LINE:
+            version = Integer.parseInt(split[1]);
+            if (version > VERSION) {
+              throw new IllegalArgumentException("Unsupported manifest version " + version);
+            }
+            break;
 
-        case CLASSPATH_FILE:
-          builder.addClassPathFile(split[1]);
-          break;
+          case LAMBDA:
+            builder.continuation(readFile(builder, version, Role.CONTINUATION, line));
+            break;
 
-        case REGULAR_FILE:
-          builder.addFile(split[1]);
-          break;
+          case CLASSPATH_FILE:
+            builder.addClassPathFile(readFile(builder, version, Role.CLASSPATH, line));
+            break;
 
-        default:
-          LOG.warn("Unrecognized manifest entry '" + line + "'");
+          case REGULAR_FILE:
+            builder.addFile(readFile(builder, version, Role.FILE, line));
+            break;
+
+          case BUNDLED_FILE:
+            final String[] bundled = split[1].split(" ", 2);
+            if (bundled.length != 2) {
+              throw new IllegalArgumentException("Malformed manifest line '" + line + "'");
+            }
+            builder.putBundledFile(bundled[0], bundled[1]);
+            break;
+
+          case SERIALIZER:
+            builder.serializer(split[1]);
+            break;
+
+          case CLASSPATH_SET:
+            builder.classPathSet(split[1]);
+            readInto(builder, manifestPath.resolveSibling(split[1]));
+            break;
+
+          default:
+            LOG.warn("Unrecognized manifest entry '" + line + "'");
+        }
       }
-    });
+    }
+  }
 
-    return builder.build();
+  /**
+   * Reads the file name of a manifest line, and its entry for version 2 manifests.
+   */
+  private static String readFile(
+      RunManifestBuilder builder, int version, Role role, String line) {
+    final String[] split = line.trim().split(" ", version == 1 ? 2 : 5);
+    if (version == 1) {
+      return split[1];
+    }
+
+    if (split.length != 5) {
+      throw new IllegalArgumentException("Malformed manifest line '" + line + "'");
+    }
+    try {
+      builder.putEntry(split[4], new ManifestEntryBuilder()
+          .role(role)
+          .size(Long.parseLong(split[1]))
+          .hash(split[2])
+          .compression(Compression.valueOf(split[3].toUpperCase(Locale.ROOT)))
+          .build());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Malformed manifest line '" + line + "'", e);
+    }
+    return split[4];
+  }
+
+  /**
+   * Returns the manifest with its classpath files moved to a shared classpath set, which is
+   * named by the hash of its content.
+   */
+  static RunManifest withClassPathSet(RunManifest manifest) {
+    final RunManifest withoutSet = RunManifestBuilder.from(manifest)
+        .classPathSet(Optional.empty())
+        .build();
+    final String content = String.join("", classPathSetLines(withoutSet));
+    final String hash = Base64Variants.MODIFIED_FOR_URL.encode(
+        Hashing.md5().hashString(content, UTF_8).asBytes());
+    return RunManifestBuilder.from(manifest)
+        .classPathSet(CLASSPATH_SET_PREFIX + hash + CLASSPATH_SET_EXT)
+        .build();
   }
 
+  /**
+   * Writes the manifest, as version 2 if it has {@link RunManifest#entries()}, otherwise as
+   * version 1.
+   *
+   * <p>If the manifest has a {@link RunManifest#classPathSet()}, its classpath files are written
+   * to the classpath set next to the manifest instead, unless it already exists.
+   */
   static void write(RunManifest manifest, Path manifestPath) throws IOException {
-    try (PrintWriter writer = new PrintWriter(Files.newOutputStream(manifestPath))) {
-      writer.write(LAMBDA + " " + manifest.continuation() + '\n');
-      manifest.classPathFiles().forEach(cpf -> writer.write(CLASSPATH_FILE + " " + cpf + '\n'));
-      manifest.files().forEach(file -> writer.write(REGULAR_FILE + " " + file + '\n'));
+    final boolean withEntries = !manifest.entries().isEmpty();
+    final List<String> lines = new ArrayList<>();
+    if (withEntries) {
+      lines.add(VERSION_LINE + " " + VERSION + '\n');
+    }
+    lines.add(fileLine(LAMBDA, manifest.continuation(), manifest, withEntries));
+    manifest.serializer().ifPresent(serializer -> lines.add(SERIALIZER + " " + serializer + '\n'));
+    if (manifest.classPathSet().isPresent()) {
+      writeClassPathSet(manifest, manifestPath.resolveSibling(manifest.classPathSet().get()));
+      lines.add(CLASSPATH_SET + " " + manifest.classPathSet().get() + '\n');
+    } else {
+      lines.addAll(classPathLines(manifest, withEntries));
+    }
+    manifest.files().forEach(file ->
+        lines.add(fileLine(REGULAR_FILE, file, manifest, withEntries)));
+
+    write(lines, manifestPath);
+  }
+
+  private static void writeClassPathSet(RunManifest manifest, Path setPath) throws IOException {
+    if (WRITTEN_CLASSPATH_SETS.contains(setPath) || Files.exists(setPath)) {
+      LOG.debug("Classpath set already staged at {}", setPath);
+    } else {
+      write(classPathSetLines(manifest), setPath);
+    }
+    WRITTEN_CLASSPATH_SETS.add(setPath);
+  }
+
+  private static List<String> classPathSetLines(RunManifest manifest) {
+    final boolean withEntries = !manifest.entries().isEmpty();
+    final List<String> lines = new ArrayList<>();
+    if (withEntries) {
+      lines.add(VERSION_LINE + " " + VERSION + '\n');
+    }
+    lines.addAll(classPathLines(manifest, withEntries));
+    return lines;
+  }
+
+  private static List<String> classPathLines(RunManifest manifest, boolean withEntries) {
+    final List<String> lines = new ArrayList<>();
+    manifest.classPathFiles().forEach(cpf ->
+        lines.add(fileLine(CLASSPATH_FILE, cpf, manifest, withEntries)));
+    manifest.classPathFiles().stream()
+        .filter(cpf -> manifest.bundledFiles().containsKey(cpf))
+        .forEach(cpf -> lines.add(
+            BUNDLED_FILE + " " + cpf + " " + manifest.bundledFiles().get(cpf) + '\n'));
+    return lines;
+  }
+
+  private static void write(List<String> lines, Path path) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newOutputStream(path))) {
+      lines.forEach(writer::write);
+    }
+  }
+
+  private static String fileLine(
+      char type, String file, RunManifest manifest, boolean withEntry) {
+    if (!withEntry) {
+      return type + " " + file + '\n';
+    }
+
+    final ManifestEntry entry = manifest.entries().get(file);
+    if (entry == null) {
+      throw new IllegalArgumentException("No manifest entry for " + file);
     }
+    return type + " " + entry.size() + " " + entry.hash() + " "
+           + entry.compression().name().toLowerCase(Locale.ROOT) + " " + file + '\n';
   }
 }
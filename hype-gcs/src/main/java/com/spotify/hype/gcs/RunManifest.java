@@ -24,6 +24,8 @@ import io.norberg.automatter.AutoMatter;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * <pre>
@@ -31,6 +33,8 @@ import java.util.List;
  *   c lib1.jar
  *   c lib2.jar
  *   c lib3.jar
+ *   b lib2.jar bundle.zip
+ *   b lib3.jar bundle.zip
  *   f other-file.txt
  * </pre>
  *
@@ -39,7 +43,30 @@ import java.util.List;
  * <pre>
  *   l continuation lambda, last one will be picked if several entries exist
  *   c jar file, will be added to the classpath
+ *   b jar file that is staged inside a bundle archive, will be extracted from it
  *   f regular file, will just be downloaded to the temp location
+ *   r name of the serializer for the return value, kryo if absent
+ * </pre>
+ *
+ * <p>Version 2 manifests start with a {@code v 2} line, and record the size, content hash and
+ * compression of each file before its name, see {@link ManifestEntry}
+ *
+ * <pre>
+ *   v 2
+ *   l 1204 zvIiMfsVnVYbjTmbzgYUvw none continuation-ce89ba3b.bin
+ *   c 52311 3Xc1LCdBxUmbLFWrgdq0kA none lib1.jar
+ *   c 8190 PzlSBG5Kc8ftXBI9QoNB5Q zip classes.jar
+ * </pre>
+ *
+ * <p>Manifests without a version line are read as version 1, with no {@link #entries()}.
+ *
+ * <p>The classpath files can be staged once in a shared classpath set, a manifest with only
+ * {@code c} and {@code b} lines named by the hash of its content. A manifest references it with
+ * an {@code s} line, which reads the classpath files from the set
+ *
+ * <pre>
+ *   l continuation-ce89ba3b.bin
+ *   s classpath-3Xc1LCdBxUmbLFWrgdq0kA.txt
  * </pre>
  */
 @AutoMatter
@@ -51,6 +78,26 @@ public interface RunManifest {
 
   List<String> files();
 
+  /**
+   * The bundle each bundled classpath file is staged in, see {@link JarBundle}.
+   */
+  Map<String, String> bundledFiles();
+
+  /**
+   * The entries of the staged files by name. Empty for version 1 manifests.
+   */
+  Map<String, ManifestEntry> entries();
+
+  /**
+   * The name of the classpath set the classpath files are staged in, if any.
+   */
+  Optional<String> classPathSet();
+
+  /**
+   * The name of the {@code HypeSerializer} for the return value.
+   */
+  Optional<String> serializer();
+
   static RunManifest read(Path manifestPath) throws IOException {
     return ManifestUtil.read(manifestPath);
   }
@@ -58,4 +105,11 @@ public interface RunManifest {
   static void write(RunManifest manifest, Path manifestPath) throws IOException {
     ManifestUtil.write(manifest, manifestPath);
   }
+
+  /**
+   * Returns the manifest with its classpath files staged in a shared classpath set when written.
+   */
+  static RunManifest withClassPathSet(RunManifest manifest) {
+    return ManifestUtil.withClassPathSet(manifest);
+  }
 }
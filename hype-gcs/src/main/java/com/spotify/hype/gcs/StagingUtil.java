@@ -36,8 +36,10 @@ import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.spotify.hype.FluentBackoff;
+import com.spotify.hype.gcs.ManifestEntry.Compression;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -51,11 +53,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -102,10 +112,44 @@ public class StagingUtil {
   private static final ConcurrentMap<UploadPair, ListenableFuture<StagedPackage>> UPLOAD_CACHE =
       new ConcurrentHashMap<>();
 
+  /**
+   * Matches the url-safe base64 encoded md5 hash at the end of a unique content name.
+   */
+  private static final Pattern CONTENT_HASH_PATTERN =
+      Pattern.compile("-([A-Za-z0-9_-]{22})(\\.[^.]+)?$");
+
   private static final AtomicInteger UPLOAD_CALL_COUNTER = new AtomicInteger(0);
-  private static final ForkJoinPool FJP = new ForkJoinPool(32);
+  private static final ExecutorService DEFAULT_EXECUTOR =
+      IoExecutors.fromSystemProperties("hype-staging");
   private static final long UPLOAD_TIMEOUT_MINUTES = 10;
 
+  /**
+   * Files of at least this many bytes are uploaded in parallel chunks, see
+   * {@link CompositeUpload}. Configurable with the {@code hype.upload.compositeThreshold} system
+   * property.
+   */
+  private static final long COMPOSITE_UPLOAD_THRESHOLD =
+      Long.getLong("hype.upload.compositeThreshold", 64 * 1024 * 1024);
+
+  /**
+   * Stage directories as one object per file, see {@link LayeredDirectory}. Enabled with the
+   * {@code hype.staging.layeredDirectories} system property.
+   */
+  private static final boolean LAYERED_DIRECTORIES =
+      Boolean.getBoolean("hype.staging.layeredDirectories");
+
+  /**
+   * Jars smaller than this many bytes are staged together in one {@link JarBundle}. Disabled by
+   * default, enabled with the {@code hype.staging.bundleThreshold} system property.
+   */
+  private static final long BUNDLE_THRESHOLD = Long.getLong("hype.staging.bundleThreshold", 0);
+
+  /**
+   * Static cache for bundles of small jars, keyed by the bundled jars.
+   */
+  private static final ConcurrentMap<List<String>, JarBundle> BUNDLE_CACHE =
+      new ConcurrentHashMap<>();
+
   /**
    * Transfers the classpath elements to the staging location.
    *
@@ -115,6 +159,45 @@ public class StagingUtil {
    */
   public static List<StagedPackage> stageClasspathElements(
       Collection<String> classpathElements, String stagingPath) {
+    return stageClasspathElements(classpathElements, stagingPath, DEFAULT_EXECUTOR);
+  }
+
+  /**
+   * Transfers the classpath elements to the staging location, running the uploads on the given
+   * executor.
+   *
+   * @param classpathElements The elements to stage.
+   * @param stagingPath The base location to stage the elements to.
+   * @param executor The executor to run the uploads on, bounding the number of concurrent uploads.
+   * @return A list of cloud workflow packages, each representing a classpath element.
+   */
+  public static List<StagedPackage> stageClasspathElements(
+      Collection<String> classpathElements, String stagingPath, ExecutorService executor) {
+    return stageClasspathElements(classpathElements, stagingPath, executor, BUNDLE_THRESHOLD);
+  }
+
+  /**
+   * Transfers data files or directories to the staging location. They are staged like classpath
+   * elements, but never bundled.
+   *
+   * @param files The files to stage.
+   * @param stagingPath The base location to stage the files to.
+   * @return A list of packages, each representing a file.
+   */
+  public static List<StagedPackage> stageFiles(Collection<String> files, String stagingPath) {
+    return stageClasspathElements(files, stagingPath, DEFAULT_EXECUTOR, 0);
+  }
+
+  /**
+   * Transfers the classpath elements to the staging location, bundling jars smaller than
+   * {@code bundleThreshold} bytes into one {@link JarBundle}.
+   *
+   * <p>Bundled jars are returned as packages with the {@link StagedPackage#bundle()} they are
+   * staged in.
+   */
+  static List<StagedPackage> stageClasspathElements(
+      Collection<String> classpathElements, String stagingPath, ExecutorService executor,
+      long bundleThreshold) {
     LOG.info("Uploading {} files to staging location {} to "
              + "prepare for execution.", classpathElements.size(), stagingPath);
 
@@ -133,7 +216,7 @@ public class StagingUtil {
     }
 
     final StageCallResults stageCallResults =
-        new StagingCall(classpathElements, stagingPath).doStage();
+        new StagingCall(classpathElements, stagingPath, executor, bundleThreshold).doStage();
 
     LOG.info("Uploading complete: {} files newly uploaded, {} files cached",
         stageCallResults.numUploaded(), stageCallResults.numCached());
@@ -141,7 +224,8 @@ public class StagingUtil {
     return stageCallResults.stagedPackages();
   }
 
-  private static void upload(String classpathElement, String target, Path targetPath)
+  private static void upload(
+      String classpathElement, String target, Path targetPath, ExecutorService executor)
       throws IOException, InterruptedException {
     ArrayList<OpenOption> options = new ArrayList<>();
     options.add(WRITE);
@@ -156,9 +240,18 @@ public class StagingUtil {
     while (true) {
       try {
         LOG.debug("Uploading classpath element {} to {}", classpathElement, target);
-        try (WritableByteChannel writer = java.nio.file.Files.newByteChannel(targetPath,
-            options.toArray(new OpenOption[options.size()]))) {
-          copyContent(classpathElement, writer);
+        final File file = new File(classpathElement);
+        final OpenOption[] openOptions = options.toArray(new OpenOption[options.size()]);
+        if (LAYERED_DIRECTORIES && file.isDirectory()) {
+          LayeredDirectory.stage(file, targetPath, executor);
+        } else if (file.isFile() && file.length() >= COMPOSITE_UPLOAD_THRESHOLD) {
+          CompositeUpload.upload(
+              file, targetPath, CompositeUpload.chunkSize(file.length()), executor, openOptions);
+        } else {
+          try (WritableByteChannel writer =
+                   java.nio.file.Files.newByteChannel(targetPath, openOptions)) {
+            copyContent(classpathElement, writer);
+          }
         }
         break;
       } catch (IOException e) {
@@ -207,6 +300,25 @@ public class StagingUtil {
     return fileName + "-" + contentHash + "." + fileExtension;
   }
 
+  /**
+   * Returns the content hash encoded in a name created by
+   * {@link #getUniqueContentName(File, String)}, if there is one.
+   */
+  static Optional<String> getContentHash(String uniqueContentName) {
+    final Matcher matcher = CONTENT_HASH_PATTERN.matcher(uniqueContentName);
+    return matcher.find()
+        ? Optional.of(matcher.group(1))
+        : Optional.empty();
+  }
+
+  /**
+   * Returns the url-safe base64 encoded md5 hash of a file's contents.
+   */
+  static String contentHash(File file) throws IOException {
+    return Base64Variants.MODIFIED_FOR_URL.encode(
+        Files.asByteSource(file).hash(Hashing.md5()).asBytes());
+  }
+
   /**
    * Copies the contents of the classpathElement to the output channel.
    *
@@ -235,14 +347,20 @@ public class StagingUtil {
     final int id = UPLOAD_CALL_COUNTER.getAndIncrement();
     final Collection<String> classpathElements;
     final String stagingPath;
+    final ExecutorService executor;
+    final long bundleThreshold;
 
-    private StagingCall(Collection<String> classpathElements, String stagingPath) {
+    private StagingCall(
+        Collection<String> classpathElements, String stagingPath, ExecutorService executor,
+        long bundleThreshold) {
       this.classpathElements = classpathElements;
       this.stagingPath = stagingPath;
+      this.executor = executor;
+      this.bundleThreshold = bundleThreshold;
     }
 
     StageCallResults doStage() {
-      List<ListenableFuture<StagedPackage>> uploadFutures = classpathElements.stream()
+      List<String> existingElements = classpathElements.stream()
           .filter(classpathElement -> {
             File file = new File(classpathElement);
             if (!file.exists()) {
@@ -253,7 +371,26 @@ public class StagingUtil {
               return true;
             }
           })
-          .map(this::uploadClasspathElement)
+          .collect(toList());
+
+      List<String> smallJars = bundleThreshold > 0
+          ? JarBundle.smallJars(existingElements, bundleThreshold)
+          : Collections.emptyList();
+      Set<String> bundledJars = smallJars.size() > 1
+          ? new HashSet<>(smallJars)
+          : Collections.emptySet();
+      JarBundle bundle = bundledJars.isEmpty() ? null : bundle(smallJars);
+      ListenableFuture<StagedPackage> bundleFuture = bundle == null
+          ? null
+          : uploadClasspathElement(bundle.file().getAbsolutePath());
+
+      List<ListenableFuture<StagedPackage>> uploadFutures = existingElements.stream()
+          .map(classpathElement -> bundledJars.contains(classpathElement)
+              ? Futures.transform(bundleFuture,
+                  (StagedPackage bundlePackage) -> bundlePackage.bundled(
+                      bundle.entryName(classpathElement), new File(classpathElement).length()),
+                  MoreExecutors.directExecutor())
+              : uploadClasspathElement(classpathElement))
           .collect(toList());
 
       List<StagedPackage> stagedPackages;
@@ -273,6 +410,25 @@ public class StagingUtil {
       return stageCallResults(stagedPackages, numUploaded, numCached);
     }
 
+    private JarBundle bundle(List<String> jars) {
+      return BUNDLE_CACHE.computeIfAbsent(jars, key -> {
+        try {
+          final Map<String, String> entryNames = new LinkedHashMap<>();
+          for (String jar : key) {
+            final File file = new File(jar);
+            entryNames.put(jar, getUniqueContentName(file, contentHash(file)));
+          }
+          final Path directory = java.nio.file.Files.createTempDirectory("hype-bundle");
+          final JarBundle bundle = JarBundle.create(entryNames, directory);
+          directory.toFile().deleteOnExit();
+          bundle.file().deleteOnExit();
+          return bundle;
+        } catch (IOException e) {
+          throw new RuntimeException("Could not bundle " + key.size() + " jars", e);
+        }
+      });
+    }
+
     private ListenableFuture<StagedPackage> uploadClasspathElement(String classpathElement) {
       return UPLOAD_CACHE.computeIfAbsent(uploadPair(classpathElement, stagingPath),
           this::uploadClasspathElement);
@@ -286,10 +442,19 @@ public class StagingUtil {
 
       SettableFuture<StagedPackage> future = SettableFuture.create();
 
-      FJP.submit(() -> {
+      executor.submit(() -> {
         // TODO: Should we attempt to detect the Mime type rather than
         // always using MimeTypes.BINARY?
         try {
+          if (LAYERED_DIRECTORIES && new File(classpathElement).isDirectory()
+              && java.nio.file.Files.exists(LayeredDirectory.indexPath(targetPath))) {
+            LOG.debug("Skipping classpath directory already staged: {} at {}",
+                classpathElement, target);
+
+            future.set(stagedPackage.asCached());
+            return;
+          }
+
           try {
             long remoteLength = java.nio.file.Files.size(targetPath);
             if (remoteLength == stagedPackage.size()) {
@@ -303,7 +468,7 @@ public class StagingUtil {
             // If the file doesn't exist, it means we need to upload it.
           }
 
-          upload(classpathElement, target, targetPath);
+          upload(classpathElement, target, targetPath, executor);
           future.set(stagedPackage);
         } catch (Exception e) {
           future.setException(new RuntimeException("Could not stage classpath element: "
@@ -352,10 +517,13 @@ public class StagingUtil {
         // Create the DataflowPackage with staging name and location.
         String uniqueName = getUniqueContentName(classpathFile, hash);
         Path resourcePath = targetPathPath.resolve(uniqueName);
+        final Compression compression = !directory
+            ? Compression.NONE
+            : LAYERED_DIRECTORIES ? Compression.LAYERS : Compression.ZIP;
         return stagedPackage(
             overridePackageName != null ? overridePackageName : uniqueName,
             resourcePath.toUri().toString(),
-            size, id);
+            size, hash, compression, id);
       } catch (IOException e) {
         throw new RuntimeException("Package setup failure for " + classpathElement, e);
       }
@@ -368,10 +536,44 @@ public class StagingUtil {
     public abstract String location();
     public abstract long size();
 
+    /**
+     * The url-safe base64 encoded md5 hash of the staged content.
+     */
+    public abstract String hash();
+
+    public abstract Compression compression();
+
+    /**
+     * The name of the {@link JarBundle} this package is staged in, if any.
+     */
+    public abstract Optional<String> bundle();
+
     abstract int stageCallId();
 
     StagedPackage asCached() {
-      return stagedPackage(name(), location(), size(), -1);
+      return new AutoValue_StagingUtil_StagedPackage(
+          name(), location(), size(), hash(), compression(), bundle(), -1);
+    }
+
+    /**
+     * Returns the package of a jar staged in this bundle package.
+     */
+    StagedPackage bundled(String name, long size) {
+      return new AutoValue_StagingUtil_StagedPackage(
+          name, location(), size, getContentHash(name).get(), Compression.NONE,
+          Optional.of(name()), stageCallId());
+    }
+
+    /**
+     * Returns the manifest entry for this package with the given role.
+     */
+    public ManifestEntry manifestEntry(ManifestEntry.Role role) {
+      return new ManifestEntryBuilder()
+          .role(role)
+          .size(size())
+          .hash(hash())
+          .compression(compression())
+          .build();
     }
   }
 
@@ -388,8 +590,11 @@ public class StagingUtil {
     abstract int numCached();
   }
 
-  private static StagedPackage stagedPackage(String name, String location, long size, int stageCallId) {
-    return new AutoValue_StagingUtil_StagedPackage(name, location, size, stageCallId);
+  private static StagedPackage stagedPackage(String name, String location, long size,
+                                             String hash, Compression compression,
+                                             int stageCallId) {
+    return new AutoValue_StagingUtil_StagedPackage(
+        name, location, size, hash, compression, Optional.empty(), stageCallId);
   }
 
   private static UploadPair uploadPair(String classpathElement, String stagingPath) {
@@ -23,19 +23,41 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.common.io.Closer;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
+import com.google.common.io.LittleEndianDataOutputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -47,8 +69,80 @@ import java.util.zip.ZipOutputStream;
  * NOTICE: Copied from https://github.com/GoogleCloudPlatform/DataflowJavaSDK
  */
 public final class ZipFiles {
+
+  /**
+   * The modification time of all zipped entries, so that zipping a directory only depends on the
+   * names and contents of its files. Local time, as zip entries store local DOS timestamps.
+   */
+  static final long ENTRY_TIME =
+      new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+  // ENTRY_TIME in MS-DOS format, with years counted from 1980
+  private static final int DOS_TIME = 0;
+  private static final int DOS_DATE = 2 << 5 | 1;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP_VERSION = 20;
+  private static final int UTF8_FLAG = 0x0800;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+  private static final long ZIP64_MAGIC_SIZE = 0xFFFFFFFFL;
+  private static final long ZIP_ENTRY_OVERHEAD = 1024;
+
+  /**
+   * The deflate level for compressible entries. Configurable with the {@code hype.zip.level}
+   * system property, from 0 to 9.
+   */
+  static final int COMPRESSION_LEVEL = compressionLevel(
+      Integer.getInteger("hype.zip.level", Deflater.DEFAULT_COMPRESSION));
+
+  /**
+   * Files with these extensions are already compressed, and stored as-is.
+   */
+  private static final ImmutableSet<String> STORED_EXTENSIONS = ImmutableSet.of(
+      "jar", "war", "zip", "gz", "tgz", "bz2", "xz", "zst", "7z",
+      "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4");
+  /**
+   * Other files are stored as-is if deflating their first {@link #SAMPLE_SIZE} bytes saves less
+   * than this ratio.
+   */
+  private static final double MIN_SAVED_RATIO = 0.1;
+  private static final int SAMPLE_SIZE = 64 * 1024;
+
+  /**
+   * The maximum total size of the files being compressed into memory ahead of the entry that is
+   * being written.
+   */
+  private static final long MAX_PENDING_BYTES = 256L * 1024 * 1024;
+  /**
+   * Files larger than this are not buffered, but compressed straight into the output when their
+   * turn comes.
+   */
+  static final long STREAMED_ENTRY_SIZE = 16L * 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Reads and compresses entries, as configured by the {@link IoExecutors} system properties.
+   */
+  static final ExecutorService EXECUTOR = IoExecutors.fromSystemProperties("hype-zip");
+
   private ZipFiles() {}
 
+  /**
+   * Returns the level if it is a valid deflate level.
+   *
+   * @throws IllegalArgumentException if the level is not from 0 to 9, or the default level
+   */
+  static int compressionLevel(int level) {
+    checkArgument(
+        level == Deflater.DEFAULT_COMPRESSION
+        || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+        "Invalid zip compression level %s, expected 0 to 9", level);
+    return level;
+  }
+
   /**
    * Returns a new {@link ByteSource} for reading the contents of the given
    * entry in the given zip file.
@@ -218,7 +312,12 @@ public final class ZipFiles {
   }
 
   /**
-   * Zips an entire directory specified by the path.
+   * Zips an entire directory specified by the path, compressing entries in parallel on a shared
+   * I/O executor.
+   *
+   * <p>The output is deterministic: entries are written in sorted order, with a fixed
+   * modification time and fixed compression settings. Already compressed files are stored
+   * without compression, and the rest are deflated at {@link #COMPRESSION_LEVEL}.
    *
    * @param sourceDirectory the directory to read from. This directory and all
    *     subdirectories will be added to the zip-file. The path within the zip
@@ -231,22 +330,46 @@ public final class ZipFiles {
   static void zipDirectory(
       File sourceDirectory,
       OutputStream outputStream) throws IOException {
+    zipDirectory(sourceDirectory, outputStream, COMPRESSION_LEVEL, EXECUTOR);
+  }
+
+  /**
+   * Zips an entire directory specified by the path, deflating compressible entries at the given
+   * level in parallel on the given executor. The output does not depend on the executor.
+   *
+   * <p>Entries are deflated concurrently into per-entry buffers and written in order, with at
+   * most {@link #MAX_PENDING_BYTES} of input buffered at a time. Files larger than
+   * {@link #STREAMED_ENTRY_SIZE} are compressed straight into the output instead. Directories
+   * that need Zip64 extensions are zipped sequentially with a {@link ZipOutputStream}.
+   */
+  static void zipDirectory(
+      File sourceDirectory,
+      OutputStream outputStream,
+      int level,
+      Executor executor) throws IOException {
     checkNotNull(sourceDirectory);
     checkNotNull(outputStream);
     checkArgument(
         sourceDirectory.isDirectory(),
         "%s is not a valid directory",
         sourceDirectory.getAbsolutePath());
-    ZipOutputStream zos = new ZipOutputStream(outputStream);
-    for (File file : sourceDirectory.listFiles()) {
-      zipDirectoryInternal(file, "", zos);
+    List<ZipInput> inputs = new ArrayList<>();
+    File[] files = sourceDirectory.listFiles();
+    Arrays.sort(files);
+    for (File file : files) {
+      collectInputs(file, "", inputs);
+    }
+
+    if (needsZip64(inputs)) {
+      zipSequentially(inputs, outputStream, level);
+    } else {
+      zipInParallel(inputs, outputStream, level, executor);
     }
-    zos.finish();
   }
 
   /**
    * Private helper function for zipping files. This one goes recursively
-   * through the input directory and all of its subdirectories and adds the
+   * through the input directory and all of its subdirectories and collects the
    * single zip entries.
    *
    * @param inputFile the file or directory to be added to the zip file
@@ -255,14 +378,12 @@ public final class ZipFiles {
    *     names separated by "/". The directory name must be a valid name
    *     according to the file system limitations. The directory name should be
    *     empty or should end in "/".
-   * @param zos the zipstream to write to
-   * @throws IOException the zipping failed, e.g. because the output was not
-   *     writeable.
+   * @param inputs the list to add the entries to
    */
-  private static void zipDirectoryInternal(
+  private static void collectInputs(
       File inputFile,
       String directoryName,
-      ZipOutputStream zos) throws IOException {
+      List<ZipInput> inputs) {
     String entryName = directoryName + inputFile.getName();
     if (inputFile.isDirectory()) {
       entryName += "/";
@@ -274,7 +395,7 @@ public final class ZipFiles {
         Arrays.sort(childFiles);
         // loop through the directory content, and zip the files
         for (File file : childFiles) {
-          zipDirectoryInternal(file, entryName, zos);
+          collectInputs(file, entryName, inputs);
         }
 
         // Since this directory has children, exit now without creating a zipentry specific to
@@ -284,14 +405,316 @@ public final class ZipFiles {
       }
     }
 
-    // Put the zip-entry for this file or empty directory into the zipoutputstream.
-    ZipEntry entry = new ZipEntry(entryName);
-    entry.setTime(inputFile.lastModified());
-    zos.putNextEntry(entry);
+    inputs.add(new ZipInput(entryName, inputFile));
+  }
+
+  private static boolean needsZip64(List<ZipInput> inputs) {
+    long size = 0;
+    for (ZipInput input : inputs) {
+      // deflate adds at most a few bytes per block to incompressible data
+      size += input.file.length() + input.file.length() / 100 + ZIP_ENTRY_OVERHEAD;
+    }
+    return inputs.size() >= ZIP64_MAGIC_COUNT || size >= ZIP64_MAGIC_SIZE;
+  }
+
+  private static void zipSequentially(
+      List<ZipInput> inputs,
+      OutputStream outputStream,
+      int level) throws IOException {
+    ZipOutputStream zos = new ZipOutputStream(outputStream);
+    zos.setMethod(ZipOutputStream.DEFLATED);
+    zos.setLevel(level);
+    for (ZipInput input : inputs) {
+      // Put the zip-entry for this file or empty directory into the zipoutputstream.
+      ZipEntry entry = new ZipEntry(input.name);
+      entry.setTime(ENTRY_TIME);
+      if (input.file.isFile() && shouldStore(input, level)) {
+        // stored entries need their size and checksum up front
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(input.file.length());
+        entry.setCompressedSize(input.file.length());
+        entry.setCrc(Files.asByteSource(input.file).hash(Hashing.crc32()).padToLong());
+      }
+      zos.putNextEntry(entry);
+
+      // Copy file contents into zipoutput stream.
+      if (input.file.isFile()) {
+        Files.asByteSource(input.file).copyTo(zos);
+      }
+    }
+    zos.finish();
+  }
+
+  private static void zipInParallel(
+      List<ZipInput> inputs,
+      OutputStream outputStream,
+      int level,
+      Executor executor) throws IOException {
+    CountingOutputStream counter = new CountingOutputStream(outputStream);
+    LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(counter);
+    List<CompressedEntry> entries = new ArrayList<>(inputs.size());
+    Deque<PendingEntry> pending = new ArrayDeque<>();
+    Iterator<ZipInput> remaining = inputs.iterator();
+    long pendingBytes = 0;
+
+    while (remaining.hasNext() || !pending.isEmpty()) {
+      while (remaining.hasNext() && (pending.isEmpty() || pendingBytes < MAX_PENDING_BYTES)) {
+        ZipInput input = remaining.next();
+        long size = input.file.length();
+        if (size > STREAMED_ENTRY_SIZE) {
+          pending.add(new PendingEntry(input, 0, null));
+        } else {
+          pending.add(new PendingEntry(input, size,
+              CompletableFuture.supplyAsync(() -> compress(input, level), executor)));
+          pendingBytes += size;
+        }
+      }
+
+      PendingEntry next = pending.poll();
+      long offset = counter.getCount();
+      CompressedEntry entry;
+      if (next.compressed == null) {
+        entry = writeStreamed(next.input, level, out, counter);
+      } else {
+        try {
+          entry = next.compressed.join();
+        } catch (CompletionException e) {
+          if (e.getCause() instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) e.getCause()).getCause();
+          }
+          throw e;
+        }
+        pendingBytes -= next.size;
+
+        out.writeInt(LOCAL_HEADER_SIGNATURE);
+        writeCommonHeader(out, entry);
+        out.write(entry.name);
+        out.write(entry.data);
+        entry.data = null;
+      }
+      entry.offset = offset;
+      entries.add(entry);
+    }
+
+    long centralDirectoryOffset = counter.getCount();
+    for (CompressedEntry entry : entries) {
+      out.writeInt(CENTRAL_HEADER_SIGNATURE);
+      out.writeShort(ZIP_VERSION); // version made by
+      writeCommonHeader(out, entry);
+      out.writeShort(0); // comment length
+      out.writeShort(0); // disk number start
+      out.writeShort(0); // internal attributes
+      out.writeInt(0); // external attributes
+      out.writeInt((int) entry.offset);
+      out.write(entry.name);
+    }
+    long centralDirectorySize = counter.getCount() - centralDirectoryOffset;
+
+    out.writeInt(END_SIGNATURE);
+    out.writeShort(0); // disk number
+    out.writeShort(0); // disk with central directory
+    out.writeShort(entries.size());
+    out.writeShort(entries.size());
+    out.writeInt((int) centralDirectorySize);
+    out.writeInt((int) centralDirectoryOffset);
+    out.writeShort(0); // comment length
+    out.flush();
+  }
+
+  /**
+   * Writes the fields shared by the local and central headers, from the version needed to
+   * extract up to the extra field length.
+   */
+  private static void writeCommonHeader(
+      LittleEndianDataOutputStream out,
+      CompressedEntry entry) throws IOException {
+    out.writeShort(ZIP_VERSION); // version needed to extract
+    out.writeShort(entry.flags);
+    out.writeShort(entry.method);
+    out.writeShort(DOS_TIME);
+    out.writeShort(DOS_DATE);
+    out.writeInt((int) entry.crc);
+    out.writeInt((int) entry.compressedSize);
+    out.writeInt((int) entry.size);
+    out.writeShort(entry.name.length);
+    out.writeShort(0); // extra field length
+  }
+
+  /**
+   * Writes a large file entry directly to the output. Stored entries are checksummed before they
+   * are copied. Deflated entries are followed by a data descriptor with their checksum and sizes,
+   * so that they only need to be read once.
+   */
+  private static CompressedEntry writeStreamed(
+      ZipInput input,
+      int level,
+      LittleEndianDataOutputStream out,
+      CountingOutputStream counter) throws IOException {
+    byte[] name = input.name.getBytes(StandardCharsets.UTF_8);
+    if (shouldStore(input, level)) {
+      long size = input.file.length();
+      long crc = Files.asByteSource(input.file).hash(Hashing.crc32()).padToLong();
+      CompressedEntry entry =
+          new CompressedEntry(name, ZipEntry.STORED, UTF8_FLAG, crc, size, size, null);
+      out.writeInt(LOCAL_HEADER_SIGNATURE);
+      writeCommonHeader(out, entry);
+      out.write(name);
+      Files.asByteSource(input.file).copyTo(out);
+      return entry;
+    }
+
+    int flags = UTF8_FLAG | DATA_DESCRIPTOR_FLAG;
+    out.writeInt(LOCAL_HEADER_SIGNATURE);
+    writeCommonHeader(out, new CompressedEntry(name, ZipEntry.DEFLATED, flags, 0, 0, 0, null));
+    out.write(name);
+
+    CRC32 crc = new CRC32();
+    long size = 0;
+    long start = counter.getCount();
+    Deflater deflater = new Deflater(level, true);
+    try (InputStream in = new FileInputStream(input.file)) {
+      DeflaterOutputStream deflated = new DeflaterOutputStream(counter, deflater, BUFFER_SIZE);
+      byte[] bytes = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(bytes)) != -1) {
+        crc.update(bytes, 0, read);
+        deflated.write(bytes, 0, read);
+        size += read;
+      }
+      // finish without closing the underlying output
+      deflated.finish();
+    } finally {
+      deflater.end();
+    }
+    long compressedSize = counter.getCount() - start;
+
+    out.writeInt(DATA_DESCRIPTOR_SIGNATURE);
+    out.writeInt((int) crc.getValue());
+    out.writeInt((int) compressedSize);
+    out.writeInt((int) size);
+    return new CompressedEntry(
+        name, ZipEntry.DEFLATED, flags, crc.getValue(), size, compressedSize, null);
+  }
+
+  private static CompressedEntry compress(ZipInput input, int level) {
+    byte[] name = input.name.getBytes(StandardCharsets.UTF_8);
+    if (!input.file.isFile()) {
+      return new CompressedEntry(name, ZipEntry.STORED, UTF8_FLAG, 0, 0, 0, new byte[0]);
+    }
+
+    try {
+      boolean store = shouldStore(input, level);
+      CRC32 crc = new CRC32();
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      // stored entries are copied as-is, without a deflater
+      Deflater deflater = store ? null : new Deflater(level, true);
+      long size = 0;
+      try (InputStream in = new FileInputStream(input.file);
+           OutputStream out = store ? buffer : new DeflaterOutputStream(buffer, deflater)) {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(bytes)) != -1) {
+          crc.update(bytes, 0, read);
+          out.write(bytes, 0, read);
+          size += read;
+        }
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+        }
+      }
+      byte[] data = buffer.toByteArray();
+      return new CompressedEntry(name, store ? ZipEntry.STORED : ZipEntry.DEFLATED, UTF8_FLAG,
+          crc.getValue(), size, data.length, data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns true if the file should be stored without compression, either because of its
+   * extension or because a sample of it does not compress well.
+   */
+  private static boolean shouldStore(ZipInput input, int level) throws IOException {
+    if (level == Deflater.NO_COMPRESSION
+        || STORED_EXTENSIONS.contains(Files.getFileExtension(input.name).toLowerCase())) {
+      return true;
+    }
+
+    byte[] sample;
+    try (InputStream in = new FileInputStream(input.file)) {
+      sample = ByteStreams.toByteArray(ByteStreams.limit(in, SAMPLE_SIZE));
+    }
+    if (sample.length == 0) {
+      return false;
+    }
+
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(sample);
+      deflater.finish();
+      byte[] output = new byte[BUFFER_SIZE];
+      long compressed = 0;
+      while (!deflater.finished()) {
+        compressed += deflater.deflate(output);
+      }
+      return compressed > sample.length * (1 - MIN_SAVED_RATIO);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static final class ZipInput {
+
+    final String name;
+    final File file;
+
+    ZipInput(String name, File file) {
+      this.name = name;
+      this.file = file;
+    }
+  }
+
+  private static final class PendingEntry {
+
+    final ZipInput input;
+    final long size;
+    // null for entries that are streamed when written
+    final CompletableFuture<CompressedEntry> compressed;
+
+    PendingEntry(ZipInput input, long size, CompletableFuture<CompressedEntry> compressed) {
+      this.input = input;
+      this.size = size;
+      this.compressed = compressed;
+    }
+  }
+
+  private static final class CompressedEntry {
+
+    final byte[] name;
+    final int method;
+    final int flags;
+    final long crc;
+    final long size;
+    final long compressedSize;
+    byte[] data;
+    long offset;
 
-    // Copy file contents into zipoutput stream.
-    if (inputFile.isFile()) {
-      Files.asByteSource(inputFile).copyTo(zos);
+    CompressedEntry(
+        byte[] name,
+        int method,
+        int flags,
+        long crc,
+        long size,
+        long compressedSize,
+        byte[] data) {
+      this.name = name;
+      this.method = method;
+      this.flags = flags;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.data = data;
     }
   }
 }
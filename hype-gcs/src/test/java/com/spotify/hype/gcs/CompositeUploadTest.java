@@ -0,0 +1,86 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompositeUploadTest {
+
+  Path tmp;
+  Path source;
+  byte[] content = new byte[100_000];
+  ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @Before
+  public void setUp() throws Exception {
+    tmp = Files.createTempDirectory("unit-test");
+    source = tmp.resolve("source.jar");
+    new Random(42).nextBytes(content);
+    Files.write(source, content);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void uploadsInChunks() throws Exception {
+    Path target = tmp.resolve("target.jar");
+    CompositeUpload.upload(source.toFile(), target, 10_000, executor, WRITE, CREATE_NEW);
+
+    assertThat(Files.readAllBytes(target), is(content));
+    List<Path> files = Files.list(tmp).collect(toList());
+    assertThat(files.size(), is(2)); // no chunks left behind
+  }
+
+  @Test
+  public void uploadsFromTaskOnSameExecutor() throws Exception {
+    Path target = tmp.resolve("target.jar");
+    executor.submit(() -> {
+      CompositeUpload.upload(source.toFile(), target, 7_000, executor, WRITE, CREATE_NEW);
+      return null;
+    }).get();
+
+    assertThat(Files.readAllBytes(target), is(content));
+  }
+
+  @Test
+  public void chunkSizeStaysWithinComposeLimit() throws Exception {
+    long size = 10L * 1024 * 1024 * 1024;
+    long chunkSize = CompositeUpload.chunkSize(size);
+    assertThat((size + chunkSize - 1) / chunkSize <= CompositeUpload.MAX_COMPONENTS, is(true));
+  }
+}
@@ -0,0 +1,165 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LayeredDirectoryTest {
+
+  Path dir;
+  Path stagingPath;
+  ExecutorService executor = Executors.newFixedThreadPool(2);
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("unit-test");
+    Files.createDirectories(dir.resolve("com/spotify"));
+    Files.createDirectories(dir.resolve("empty"));
+    Files.write(dir.resolve("com/spotify/A.class"), new byte[] {1, 2, 3});
+    Files.write(dir.resolve("com/spotify/B.class"), new byte[] {4, 5, 6});
+    Files.write(dir.resolve("resource.txt"), "hello".getBytes());
+
+    stagingPath = Files.createTempDirectory("unit-test");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdown();
+  }
+
+  @Test
+  public void stagesOnlyChangedFiles() throws Exception {
+    LayeredDirectory.stage(dir.toFile(), stagingPath.resolve("classes-a.jar"), executor);
+    assertThat(Files.list(stagingPath.resolve("blobs")).count(), is(3L));
+
+    Files.write(dir.resolve("com/spotify/A.class"), new byte[] {1, 2, 4});
+    LayeredDirectory.stage(dir.toFile(), stagingPath.resolve("classes-b.jar"), executor);
+    assertThat(Files.list(stagingPath.resolve("blobs")).count(), is(4L));
+  }
+
+  @Test
+  public void rebuildsIdenticalZip() throws Exception {
+    Path target = stagingPath.resolve("classes-a.jar");
+    LayeredDirectory.stage(dir.toFile(), target, executor);
+
+    Path zipFile = Files.createTempDirectory("unit-test").resolve("classes-a.jar");
+    LayeredDirectory.rebuild(target, zipFile, executor);
+
+    assertThat(Files.readAllBytes(zipFile), is(zip(dir)));
+  }
+
+  @Test
+  public void rebuildsFromCachedBlobs() throws Exception {
+    Path target = stagingPath.resolve("classes-a.jar");
+    LayeredDirectory.stage(dir.toFile(), target, executor);
+    Path cacheDir = Files.createTempDirectory("unit-test");
+    Path zipDir = Files.createTempDirectory("unit-test");
+    LayeredDirectory.rebuild(target, zipDir.resolve("a.jar"), cacheDir, executor);
+    assertThat(Files.list(cacheDir).count(), is(3L));
+
+    // only the changed file is fetched, the others come from the cache
+    Files.write(dir.resolve("com/spotify/A.class"), new byte[] {1, 2, 4});
+    Path changed = stagingPath.resolve("classes-b.jar");
+    LayeredDirectory.stage(dir.toFile(), changed, executor);
+    for (Path blob : Files.list(cacheDir).collect(Collectors.toList())) {
+      Files.deleteIfExists(stagingPath.resolve("blobs").resolve(blob.getFileName()));
+    }
+
+    Path zipFile = zipDir.resolve("b.jar");
+    LayeredDirectory.rebuild(changed, zipFile, cacheDir, executor);
+    assertThat(Files.readAllBytes(zipFile), is(zip(dir)));
+  }
+
+  @Test
+  public void downloadsLayeredDirectoryFromManifest() throws Exception {
+    Path zip = Files.createTempFile("unit-test", ".jar");
+    Files.write(zip, zip(dir));
+    String name = "classes-" + StagingUtil.contentHash(zip.toFile()) + ".jar";
+    LayeredDirectory.stage(dir.toFile(), stagingPath.resolve(name), executor);
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(new RunManifestBuilder()
+        .continuation(name)
+        .build(), manifestFile);
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    ManifestLoader.downloadManifest(manifestFile, readPath);
+
+    assertThat(Files.readAllBytes(readPath.resolve(name)), is(zip(dir)));
+    assertThat(Files.list(readPath).count(), is(1L));
+  }
+
+  @Test
+  public void downloadsLayeredDirectoryRebuiltDifferently() throws Exception {
+    Files.write(dir.resolve("zeros.bin"), new byte[10_000]);
+    Path zip = Files.createTempFile("unit-test", ".jar");
+    Files.write(zip, zip(dir));
+    String name = "classes-" + StagingUtil.contentHash(zip.toFile()) + ".jar";
+    Path target = stagingPath.resolve(name);
+    LayeredDirectory.stage(dir.toFile(), target, executor);
+
+    // as if the node deflated differently than the submitter, e.g. with another zlib
+    Path index = LayeredDirectory.indexPath(target);
+    List<String> lines = Files.readAllLines(index).stream()
+        .map(line -> line.startsWith("c ") ? "c " + Deflater.NO_COMPRESSION : line)
+        .collect(Collectors.toList());
+    Files.write(index, lines);
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(new RunManifestBuilder()
+        .continuation(name)
+        .build(), manifestFile);
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    ManifestLoader.downloadManifest(manifestFile, readPath);
+
+    Path rebuilt = readPath.resolve(name);
+    assertThat(Files.readAllBytes(rebuilt), is(not(zip(dir))));
+    try (ZipFile zipFile = new ZipFile(rebuilt.toFile())) {
+      assertThat(ByteStreams.toByteArray(
+          zipFile.getInputStream(zipFile.getEntry("zeros.bin"))), is(new byte[10_000]));
+      assertThat(ByteStreams.toByteArray(
+          zipFile.getInputStream(zipFile.getEntry("resource.txt"))), is("hello".getBytes()));
+    }
+  }
+
+  private static byte[] zip(Path dir) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ZipFiles.zipDirectory(dir.toFile(), out);
+    return out.toByteArray();
+  }
+}
@@ -24,6 +24,7 @@ import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 
+import com.spotify.hype.gcs.ManifestEntry.Role;
 import com.spotify.hype.gcs.StagingUtil.StagedPackage;
 import java.io.File;
 import java.net.URI;
@@ -32,8 +33,14 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -81,6 +88,168 @@ public class ManifestLoaderTest {
     assertThat(downloadedManifest, is(manifest));
   }
 
+  @Test
+  public void lazyStaging() throws Exception {
+    List<StagedPackage> stagedPackages =
+        StagingUtil.stageClasspathElements(testFiles, stagingLocation);
+
+    RunManifest manifest = new RunManifestBuilder()
+        .continuation(stagedPackages.get(0).name())
+        .classPathFiles(stagedPackages.stream().map(StagedPackage::name).collect(toList()))
+        .build();
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(manifest, manifestFile);
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    CompletableFuture<Void> classpath =
+        ManifestLoader.downloadManifestLazily(manifestFile, manifest, readPath);
+    assertThat(Files.exists(readPath.resolve(manifest.continuation())), is(true));
+
+    classpath.get();
+    List<Path> readFiles = Files.list(readPath).collect(toList());
+    assertThat(readFiles.size(), is(testFiles.size()));
+  }
+
+  @Test
+  public void bundledStaging() throws Exception {
+    Path jarDir = Files.createTempDirectory("unit-test");
+    Random random = new Random(1);
+    List<String> elements = new ArrayList<>();
+    for (String name : Arrays.asList("continuation.bin", "lib1.jar", "lib2.jar", "lib3.jar")) {
+      byte[] content = new byte[1024];
+      random.nextBytes(content);
+      elements.add(Files.write(jarDir.resolve(name), content).toString());
+    }
+
+    List<StagedPackage> stagedPackages = StagingUtil.stageClasspathElements(
+        elements, stagingLocation, Executors.newFixedThreadPool(4), 64 * 1024);
+
+    RunManifestBuilder builder = new RunManifestBuilder()
+        .continuation(stagedPackages.get(0).name())
+        .classPathFiles(stagedPackages.stream().map(StagedPackage::name).collect(toList()));
+    stagedPackages.forEach(p -> p.bundle().ifPresent(b -> builder.putBundledFile(p.name(), b)));
+    RunManifest manifest = builder.build();
+    assertThat(manifest.bundledFiles().size(), is(3));
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(manifest, manifestFile);
+    List<Path> stagedFiles = Files.list(stagingPath).collect(toList());
+    assertThat(stagedFiles.size(), is(3)); // continuation + bundle + manifest
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    RunManifest downloadedManifest = ManifestLoader.downloadManifest(manifestFile, readPath);
+
+    assertThat(downloadedManifest, is(manifest));
+    for (int i = 0; i < elements.size(); i++) {
+      Path readFile = readPath.resolve(stagedPackages.get(i).name());
+      assertThat(Files.readAllBytes(readFile), is(Files.readAllBytes(Paths.get(elements.get(i)))));
+    }
+    assertThat(Files.list(readPath).count(), is((long) elements.size()));
+  }
+
+  @Test
+  public void skipsDownloadedEntries() throws Exception {
+    StagedPackage stagedPackage = StagingUtil.stageClasspathElements(
+        testFiles.subList(0, 1), stagingLocation).get(0);
+    Path stagedFile = stagingPath.resolve(stagedPackage.name());
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(new RunManifestBuilder()
+        .continuation(stagedPackage.name())
+        .putEntry(stagedPackage.name(), stagedPackage.manifestEntry(Role.CONTINUATION))
+        .build(), manifestFile);
+    assertThat(Files.readAllLines(manifestFile).get(0), is("v 2"));
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    Files.copy(stagedFile, readPath.resolve(stagedPackage.name()));
+    Files.delete(stagedFile);
+
+    ManifestLoader.downloadManifest(manifestFile, readPath);
+    assertThat(Files.size(readPath.resolve(stagedPackage.name())), is(stagedPackage.size()));
+  }
+
+  @Test
+  public void extractsStagedDirectories() throws Exception {
+    Path directory = Files.createTempDirectory("dataset");
+    Files.write(directory.resolve("part-0.csv"), "a,b".getBytes());
+    List<StagedPackage> stagedFiles =
+        StagingUtil.stageFiles(Arrays.asList(directory.toString()), stagingLocation);
+    StagedPackage stagedDirectory = stagedFiles.get(0);
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(new RunManifestBuilder()
+        .continuation(stagedDirectory.name())
+        .files(stagedDirectory.name())
+        .putEntry(stagedDirectory.name(), stagedDirectory.manifestEntry(Role.FILE))
+        .build(), manifestFile);
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    ManifestLoader.downloadManifest(manifestFile, readPath);
+
+    Path extracted = readPath.resolve(stagedDirectory.name().replaceFirst("\\.jar$", ""));
+    assertThat(Files.readAllLines(extracted.resolve("part-0.csv")), is(Arrays.asList("a,b")));
+  }
+
+  @Test
+  public void resumesPartialDownload() throws Exception {
+    StagedPackage stagedPackage = StagingUtil.stageClasspathElements(
+        testFiles.subList(0, 1), stagingLocation).get(0);
+    Path stagedFile = stagingPath.resolve(stagedPackage.name());
+    byte[] content = Files.readAllBytes(stagedFile);
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(new RunManifestBuilder()
+        .continuation(stagedPackage.name())
+        .build(), manifestFile);
+
+    Path readPath = Files.createTempDirectory("unit-test");
+    Files.write(readPath.resolve(stagedPackage.name() + ".part"),
+        Arrays.copyOf(content, content.length / 2));
+    ManifestLoader.downloadManifest(manifestFile, readPath);
+
+    assertThat(Files.readAllBytes(readPath.resolve(stagedPackage.name())), is(content));
+    assertThat(Files.exists(readPath.resolve(stagedPackage.name() + ".part")), is(false));
+  }
+
+  @Test
+  public void retriesOnChecksumMismatch() throws Exception {
+    StagedPackage stagedPackage = StagingUtil.stageClasspathElements(
+        testFiles.subList(0, 1), stagingLocation).get(0);
+    Path stagedFile = stagingPath.resolve(stagedPackage.name());
+    byte[] content = Files.readAllBytes(stagedFile);
+
+    Path manifestFile = stagingPath.resolve("manifest.txt");
+    RunManifest.write(new RunManifestBuilder()
+        .continuation(stagedPackage.name())
+        .build(), manifestFile);
+
+    // a corrupt partial download is discarded after failing verification
+    Path readPath = Files.createTempDirectory("unit-test");
+    Files.write(readPath.resolve(stagedPackage.name() + ".part"), new byte[content.length / 2]);
+    ManifestLoader.downloadManifest(manifestFile, readPath);
+
+    assertThat(Files.readAllBytes(readPath.resolve(stagedPackage.name())), is(content));
+  }
+
+  @Test
+  public void downloadsInParallelRanges() throws Exception {
+    byte[] content = new byte[100_000];
+    new Random(42).nextBytes(content);
+    Path stagedFile = stagingPath.resolve("large.jar");
+    Files.write(stagedFile, content);
+
+    Path partFile = Files.createTempDirectory("unit-test").resolve("large.jar.part");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ManifestLoader.downloadRanges(stagedFile, partFile, 7_000, executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(Files.readAllBytes(partFile), is(content));
+  }
+
   private static URI toUri(URL url) {
     try {
       return url.toURI();
@@ -23,11 +23,14 @@ package com.spotify.hype.gcs;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 
+import com.spotify.hype.gcs.ManifestEntry.Compression;
+import com.spotify.hype.gcs.ManifestEntry.Role;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.Rule;
 import org.junit.Test;
@@ -41,6 +44,19 @@ public class ManifestUtilTest {
       .files("other-file.txt")
       .build();
 
+  private static final RunManifest EXAMPLE_V2 = RunManifestBuilder.from(EXAMPLE)
+      .putEntry("continuation-ce89ba3b.bin",
+          entry(Role.CONTINUATION, 1204, "zvIiMfsVnVYbjTmbzgYUvw", Compression.NONE))
+      .putEntry("lib1.jar",
+          entry(Role.CLASSPATH, 52311, "3Xc1LCdBxUmbLFWrgdq0kA", Compression.NONE))
+      .putEntry("lib2.jar",
+          entry(Role.CLASSPATH, 8190, "PzlSBG5Kc8ftXBI9QoNB5Q", Compression.ZIP))
+      .putEntry("lib3.jar",
+          entry(Role.CLASSPATH, 1024, "e2fmFsBhpLQ3nMJiyXXWTQ", Compression.LAYERS))
+      .putEntry("other-file.txt",
+          entry(Role.FILE, 12, "Ww8TKVmbVqQg7Q7VOkwI5g", Compression.NONE))
+      .build();
+
   @Rule
   public ExpectedException exception = ExpectedException.none();
 
@@ -71,6 +87,73 @@ public class ManifestUtilTest {
     assertThat(strings, is(expected));
   }
 
+  @Test
+  public void readVersion2Manifest() throws Exception {
+    Path manifestPath = load("/example-manifest-v2.txt");
+    RunManifest manifest = ManifestUtil.read(manifestPath);
+
+    assertThat(manifest, is(EXAMPLE_V2));
+  }
+
+  @Test
+  public void writeVersion2Manifest() throws Exception {
+    Path manifest = Files.createTempFile("manifest", ".txt");
+    ManifestUtil.write(EXAMPLE_V2, manifest);
+
+    List<String> expected = Files.readAllLines(load("/example-manifest-v2.txt"));
+    assertThat(Files.readAllLines(manifest), is(expected));
+  }
+
+  @Test
+  public void classPathSet() throws Exception {
+    Path dir = Files.createTempDirectory("unit-test");
+    RunManifest manifest = RunManifest.withClassPathSet(EXAMPLE_V2);
+    RunManifest other = RunManifest.withClassPathSet(RunManifestBuilder.from(EXAMPLE_V2)
+        .continuation("continuation-other.bin")
+        .putEntry("continuation-other.bin",
+            entry(Role.CONTINUATION, 1000, "Ww8TKVmbVqQg7Q7VOkwI5g", Compression.NONE))
+        .build());
+    assertThat(other.classPathSet(), is(manifest.classPathSet()));
+
+    Path manifestPath = dir.resolve("manifest.txt");
+    ManifestUtil.write(manifest, manifestPath);
+
+    assertThat(Files.readAllLines(manifestPath), is(Arrays.asList(
+        "v 2",
+        "l 1204 zvIiMfsVnVYbjTmbzgYUvw none continuation-ce89ba3b.bin",
+        "s " + manifest.classPathSet().get(),
+        "f 12 Ww8TKVmbVqQg7Q7VOkwI5g none other-file.txt")));
+    assertThat(Files.exists(dir.resolve(manifest.classPathSet().get())), is(true));
+    assertThat(ManifestUtil.read(manifestPath), is(manifest));
+  }
+
+  @Test
+  public void serializer() throws Exception {
+    RunManifest manifest = RunManifestBuilder.from(EXAMPLE)
+        .serializer("bytes")
+        .build();
+    Path manifestPath = Files.createTempFile("manifest", ".txt");
+    ManifestUtil.write(manifest, manifestPath);
+
+    assertThat(Files.readAllLines(manifestPath).get(1), is("r bytes"));
+    assertThat(ManifestUtil.read(manifestPath), is(manifest));
+  }
+
+  @Test
+  public void bundledFiles() throws Exception {
+    RunManifest bundled = RunManifestBuilder.from(EXAMPLE)
+        .putBundledFile("lib3.jar", "bundle-abc.zip")
+        .putBundledFile("lib2.jar", "bundle-abc.zip")
+        .build();
+    Path manifest = Files.createTempFile("manifest", ".txt");
+    ManifestUtil.write(bundled, manifest);
+
+    assertThat(Files.readAllLines(manifest).subList(4, 6), is(Arrays.asList(
+        "b lib2.jar bundle-abc.zip",
+        "b lib3.jar bundle-abc.zip")));
+    assertThat(ManifestUtil.read(manifest), is(bundled));
+  }
+
   @Test
   public void skipEmptyLines() throws Exception {
     Path manifestPath = load("/empty-lines-manifest.txt");
@@ -88,6 +171,16 @@ public class ManifestUtilTest {
     ManifestUtil.read(manifestPath);
   }
 
+  private static ManifestEntry entry(
+      Role role, long size, String hash, Compression compression) {
+    return new ManifestEntryBuilder()
+        .role(role)
+        .size(size)
+        .hash(hash)
+        .compression(compression)
+        .build();
+  }
+
   private Path load(String resourceName) throws URISyntaxException {
     URL resource = ManifestUtil.class.getResource(resourceName);
     return Paths.get(resource.toURI());
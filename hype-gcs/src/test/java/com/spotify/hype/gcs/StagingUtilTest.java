@@ -33,6 +33,10 @@ import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -86,6 +90,36 @@ public class StagingUtilTest {
     assertThat(stagedPackage.location().matches(".+/" + md5HashPattern()), is(true));
   }
 
+  @Test
+  public void parsesContentHashFromStagedName() throws Exception {
+    List<StagingUtil.StagedPackage> stagedPackages =
+        StagingUtil.stageClasspathElements(singletonList(testFilePath), stagingPath);
+
+    String name = stagedPackages.get(0).name();
+    String hash = StagingUtil.contentHash(tmp.resolve(name).toFile());
+    assertThat(StagingUtil.getContentHash(name), is(Optional.of(hash)));
+    assertThat(StagingUtil.getContentHash("continuation-ce89ba3b.bin"), is(Optional.empty()));
+  }
+
+  @Test
+  public void stagesOnGivenExecutor() throws Exception {
+    AtomicInteger threads = new AtomicInteger();
+    ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+      threads.incrementAndGet();
+      return new Thread(r);
+    });
+
+    try {
+      List<StagingUtil.StagedPackage> stagedPackages =
+          StagingUtil.stageClasspathElements(singletonList(testFilePath), stagingPath, executor);
+
+      assertThat(stagedPackages, hasSize(1));
+      assertThat(threads.get(), is(1));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   private String md5HashPattern() {
     return filenameWithoutExtension + "-.{22}.+";
   }
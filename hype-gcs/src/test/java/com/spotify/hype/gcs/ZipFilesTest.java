@@ -0,0 +1,166 @@
+/*-
+ * -\-\-
+ * hype-gcs
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.gcs;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZipFilesTest {
+
+  Path dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("unit-test");
+    Files.createDirectories(dir.resolve("com/spotify"));
+    Files.write(dir.resolve("com/spotify/A.class"), new byte[] {1, 2, 3});
+    Files.write(dir.resolve("com/spotify/B.class"), new byte[] {4, 5, 6});
+    Files.write(dir.resolve("resource.txt"), "hello".getBytes());
+  }
+
+  @Test
+  public void zipsDeterministically() throws Exception {
+    byte[] zip = zip(dir);
+
+    Files.setLastModifiedTime(dir.resolve("com/spotify/A.class"), FileTime.fromMillis(0));
+    Files.setLastModifiedTime(dir.resolve("resource.txt"), FileTime.fromMillis(1_000_000));
+
+    assertThat(zip(dir), is(zip));
+  }
+
+  @Test
+  public void zipDependsOnContents() throws Exception {
+    byte[] zip = zip(dir);
+
+    Files.write(dir.resolve("com/spotify/A.class"), new byte[] {1, 2, 4});
+
+    assertThat(zip(dir), is(not(zip)));
+  }
+
+  @Test
+  public void zipIsIndependentOfExecutor() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ZipFiles.zipDirectory(dir.toFile(), out, ZipFiles.COMPRESSION_LEVEL, Runnable::run);
+
+    assertThat(out.toByteArray(), is(zip(dir)));
+  }
+
+  @Test
+  public void zipCanBeRead() throws Exception {
+    Files.createDirectories(dir.resolve("empty"));
+    Path zipFile = Files.createTempFile("unit-test", ".jar");
+    Files.write(zipFile, zip(dir));
+
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      List<String> names = zip.stream().map(ZipEntry::getName).collect(toList());
+      assertThat(names, contains(
+          "com/spotify/A.class", "com/spotify/B.class", "empty/", "resource.txt"));
+      assertThat(ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("resource.txt"))),
+          is("hello".getBytes()));
+      assertThat(zip.getEntry("com/spotify/A.class").getTime(), is(ZipFiles.ENTRY_TIME));
+    }
+  }
+
+  @Test
+  public void storesIncompressibleEntries() throws Exception {
+    byte[] random = new byte[10_000];
+    new Random(42).nextBytes(random);
+    Files.write(dir.resolve("random.bin"), random);
+    Files.write(dir.resolve("nested.jar"), new byte[10_000]);
+    Files.write(dir.resolve("zeros.bin"), new byte[10_000]);
+    Path zipFile = Files.createTempFile("unit-test", ".jar");
+    Files.write(zipFile, zip(dir));
+
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      assertThat(zip.getEntry("random.bin").getMethod(), is(ZipEntry.STORED));
+      assertThat(zip.getEntry("nested.jar").getMethod(), is(ZipEntry.STORED));
+      assertThat(zip.getEntry("zeros.bin").getMethod(), is(ZipEntry.DEFLATED));
+      assertThat(ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("random.bin"))),
+          is(random));
+    }
+  }
+
+  @Test
+  public void streamsLargeEntries() throws Exception {
+    byte[] random = new byte[(int) ZipFiles.STREAMED_ENTRY_SIZE + 1];
+    new Random(42).nextBytes(random);
+    Files.write(dir.resolve("large-random.bin"), random);
+    Files.write(dir.resolve("large-zeros.bin"), new byte[(int) ZipFiles.STREAMED_ENTRY_SIZE + 1]);
+    Path zipFile = Files.createTempFile("unit-test", ".jar");
+    Files.write(zipFile, zip(dir));
+
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      assertThat(zip.getEntry("large-random.bin").getMethod(), is(ZipEntry.STORED));
+      assertThat(zip.getEntry("large-zeros.bin").getMethod(), is(ZipEntry.DEFLATED));
+      assertThat(ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("large-random.bin"))),
+          is(random));
+      assertThat(ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("large-zeros.bin"))),
+          is(new byte[(int) ZipFiles.STREAMED_ENTRY_SIZE + 1]));
+      assertThat(ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("resource.txt"))),
+          is("hello".getBytes()));
+    }
+
+    try (ZipInputStream in = new ZipInputStream(Files.newInputStream(zipFile))) {
+      List<String> names = new ArrayList<>();
+      for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+        names.add(entry.getName());
+        ByteStreams.toByteArray(in);
+      }
+      assertThat(names, contains("com/spotify/A.class", "com/spotify/B.class",
+          "large-random.bin", "large-zeros.bin", "resource.txt"));
+    }
+  }
+
+  @Test
+  public void acceptsValidCompressionLevels() throws Exception {
+    assertThat(ZipFiles.compressionLevel(-1), is(-1));
+    assertThat(ZipFiles.compressionLevel(0), is(0));
+    assertThat(ZipFiles.compressionLevel(9), is(9));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidCompressionLevel() throws Exception {
+    ZipFiles.compressionLevel(10);
+  }
+
+  private static byte[] zip(Path dir) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ZipFiles.zipDirectory(dir.toFile(), out);
+    return out.toByteArray();
+  }
+}
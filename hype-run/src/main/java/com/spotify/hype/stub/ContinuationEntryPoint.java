@@ -21,7 +21,10 @@
 package com.spotify.hype.stub;
 
 import com.spotify.hype.util.Fn;
+import com.spotify.hype.util.HypeSerializer;
+import com.spotify.hype.util.KryoSerializer;
 import com.spotify.hype.util.SerializationUtil;
+import com.spotify.hype.util.StagedClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,7 +36,8 @@ public class ContinuationEntryPoint {
 
   public static void main(String[] args) throws Exception {
     if (args.length < 2) {
-      throw new IllegalArgumentException("Usage: <staging-dir> <continuation-file> <output-file>");
+      throw new IllegalArgumentException(
+          "Usage: <staging-dir> <continuation-file> <output-file> [serializer]");
     }
 
     final Path continuationPath = Paths.get(args[0], args[1]);
@@ -47,7 +51,15 @@ public class ContinuationEntryPoint {
     }
 
     System.setProperty("user.dir", args[0]);
-    final Fn<?> continuation = SerializationUtil.readContinuation(continuationPath);
+
+    // the classpath might still be downloading, in which case it is loaded through a staged loader
+    final ClassLoader classLoader = System.getProperty(StagedClassLoader.CLASSPATH_PROPERTY) != null
+        ? StagedClassLoader.fromSystemProperty(
+            Paths.get(args[0]), ContinuationEntryPoint.class.getClassLoader())
+        : ContinuationEntryPoint.class.getClassLoader();
+    Thread.currentThread().setContextClassLoader(classLoader);
+
+    final Fn<?> continuation = SerializationUtil.readContinuation(continuationPath, classLoader);
 
     Object returnValue;
     try {
@@ -57,7 +69,8 @@ public class ContinuationEntryPoint {
       throw e;
     }
 
-    SerializationUtil.serializeObject(returnValue, returnValuePath);
+    final String serializer = args.length > 3 ? args[3] : KryoSerializer.NAME;
+    HypeSerializer.forName(serializer, classLoader).write(returnValue, returnValuePath);
     System.out.println("returnValuePath = " + returnValuePath);
   }
 }
@@ -0,0 +1,490 @@
+/*-
+ * -\-\-
+ * hype-submitter
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prunes a classpath to the entries that contain classes reachable from a continuation.
+ *
+ * <p>The root classes are the classes of all objects reachable from the continuation, which is
+ * what gets serialized. From there, classes referenced in the constant pool of each class file are
+ * followed, including string constants that name a class, to cover simple {@code Class.forName}
+ * lookups. Service providers in {@code META-INF/services} are followed for reachable service
+ * interfaces.
+ *
+ * <p>Since reflection can't be analyzed in general, entries containing a package in
+ * {@link #DEFAULT_KEEP_PACKAGES} or in the comma separated {@code hype.classpath.keep} system
+ * property are always kept. Classpath entries that can't be read are kept as well.
+ *
+ * <p>Indexing the classes opens every jar on the classpath, so the index is cached per classpath
+ * and only rebuilt when an entry is added, removed or modified. Pruning then only reads the class
+ * files reachable from the continuation.
+ */
+class ClasspathPruner {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClasspathPruner.class);
+
+  static final List<String> DEFAULT_KEEP_PACKAGES = ImmutableList.of(
+      "com/spotify/hype/",
+      "scala/",
+      "com/esotericsoftware/",
+      "org/objenesis/",
+      "org/slf4j/",
+      "ch/qos/logback/",
+      "org/apache/log4j/",
+      "org/apache/logging/",
+      "com/fasterxml/jackson/",
+      "com/google/protobuf/");
+
+  private static final String CLASS_EXT = ".class";
+  private static final String SERVICES_DIR = "META-INF/services/";
+  private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([\\w/$]+);");
+  private static final Pattern DOTTED_CLASS =
+      Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)+");
+
+  private static final int MAX_CACHED_INDEXES = 4;
+  private static final Map<List<String>, Index> INDEXES =
+      new LinkedHashMap<List<String>, Index>(MAX_CACHED_INDEXES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, Index> eldest) {
+          return size() > MAX_CACHED_INDEXES;
+        }
+      };
+
+  private final List<Path> classpath;
+  private final Index index;
+  private final Set<Path> kept;
+  private final Map<Path, ZipFile> jars = new HashMap<>();
+
+  private ClasspathPruner(List<Path> classpath, Index index) {
+    this.classpath = classpath;
+    this.index = index;
+    this.kept = new HashSet<>(index.kept);
+  }
+
+  /**
+   * Returns the entries of the classpath that are needed to run the continuation, in classpath
+   * order.
+   */
+  static List<Path> prune(List<Path> classpath, Object continuation) {
+    final List<String> keepPackages = new ArrayList<>(DEFAULT_KEEP_PACKAGES);
+    Splitter.on(',').trimResults().omitEmptyStrings()
+        .split(System.getProperty("hype.classpath.keep", ""))
+        .forEach(pkg -> keepPackages.add(pkg.replace('.', '/')));
+
+    return new ClasspathPruner(classpath, index(classpath, keepPackages)).prune(continuation);
+  }
+
+  static Index index(List<Path> classpath, List<String> keepPackages) {
+    final List<String> key = indexKey(classpath, keepPackages);
+
+    synchronized (INDEXES) {
+      final Index index = INDEXES.get(key);
+      if (index != null) {
+        return index;
+      }
+    }
+
+    final Index index = new Index(classpath, keepPackages);
+    synchronized (INDEXES) {
+      INDEXES.put(key, index);
+    }
+    return index;
+  }
+
+  /**
+   * Returns a key that changes whenever the index of the classpath would. Directories are keyed
+   * on the latest modification time of the files in them, since modifying a nested file does not
+   * touch the directory itself.
+   */
+  private static List<String> indexKey(List<Path> classpath, List<String> keepPackages) {
+    final List<String> key = new ArrayList<>(keepPackages);
+    for (Path entry : classpath) {
+      long lastModified;
+      try {
+        if (Files.isDirectory(entry)) {
+          try (Stream<Path> files = Files.walk(entry)) {
+            lastModified = files
+                .mapToLong(file -> file.toFile().lastModified())
+                .max()
+                .orElse(0L);
+          }
+        } else {
+          lastModified = Files.getLastModifiedTime(entry).toMillis();
+        }
+      } catch (IOException | UncheckedIOException e) {
+        lastModified = -1L;
+      }
+      key.add(entry + "@" + lastModified);
+    }
+    return key;
+  }
+
+  private List<Path> prune(Object continuation) {
+    try {
+      return pruneReachable(continuation);
+    } finally {
+      for (ZipFile jar : jars.values()) {
+        try {
+          jar.close();
+        } catch (IOException ignored) {
+          // only read from
+        }
+      }
+    }
+  }
+
+  private List<Path> pruneReachable(Object continuation) {
+    final Set<String> visited = new HashSet<>();
+    final Deque<String> queue = new ArrayDeque<>(rootClasses(continuation));
+    while (!queue.isEmpty()) {
+      final String className = queue.poll();
+      final Path entry = index.classes.get(className);
+      if (entry == null || !visited.add(className)) {
+        continue;
+      }
+
+      kept.add(entry);
+      try {
+        queue.addAll(referencedClasses(entry, className));
+      } catch (IOException e) {
+        LOG.warn("Could not read class {} from {}", className, entry, e);
+      }
+      queue.addAll(index.services.getOrDefault(className, Collections.emptyList()));
+    }
+
+    final List<Path> pruned = classpath.stream()
+        .filter(kept::contains)
+        .collect(toList());
+
+    LOG.info("Pruned classpath from {} to {} entries", classpath.size(), pruned.size());
+    return pruned;
+  }
+
+  private Set<String> referencedClasses(Path entry, String className) throws IOException {
+    final Set<String> cached = index.references.get(className);
+    if (cached != null) {
+      return cached;
+    }
+
+    final Set<String> referenced = referencedClasses(readClass(entry, className));
+    index.references.put(className, referenced);
+    return referenced;
+  }
+
+  private byte[] readClass(Path entry, String className) throws IOException {
+    final String name = className + CLASS_EXT;
+    if (Files.isDirectory(entry)) {
+      return Files.readAllBytes(entry.resolve(name));
+    }
+
+    ZipFile jar = jars.get(entry);
+    if (jar == null) {
+      jar = new ZipFile(entry.toFile());
+      jars.put(entry, jar);
+    }
+    try (InputStream in = jar.getInputStream(jar.getEntry(name))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  /**
+   * Returns the internal names of the classes referenced from the constant pool of a class file.
+   */
+  static Set<String> referencedClasses(byte[] classFile) throws IOException {
+    final Set<String> referenced = new LinkedHashSet<>();
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+    in.readInt(); // magic
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+
+    final int count = in.readUnsignedShort();
+    final String[] utf8 = new String[count];
+    final List<Integer> classIndexes = new ArrayList<>();
+    for (int i = 1; i < count; i++) {
+      final int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1: // Utf8
+          utf8[i] = in.readUTF();
+          break;
+        case 7: // Class
+          classIndexes.add(in.readUnsignedShort());
+          break;
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          in.skipBytes(2);
+          break;
+        case 15: // MethodHandle
+          in.skipBytes(3);
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          in.skipBytes(4);
+          break;
+        case 5: // Long
+        case 6: // Double
+          in.skipBytes(8);
+          i++; // takes two slots
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+
+    for (int index : classIndexes) {
+      final String name = utf8[index];
+      if (name != null && !name.startsWith("[")) {
+        referenced.add(name);
+      }
+    }
+    for (String value : utf8) {
+      if (value == null) {
+        continue;
+      }
+      final Matcher descriptor = DESCRIPTOR_CLASS.matcher(value);
+      while (descriptor.find()) {
+        referenced.add(descriptor.group(1));
+      }
+      if (DOTTED_CLASS.matcher(value).matches()) {
+        referenced.add(value.replace('.', '/'));
+      }
+    }
+    return referenced;
+  }
+
+  /**
+   * Returns the internal names of the classes of all objects reachable from the root, through
+   * non-transient fields, collection elements and captured lambda arguments.
+   */
+  static Set<String> rootClasses(Object root) {
+    final Set<String> rootClasses = new LinkedHashSet<>();
+    final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    final Deque<Object> queue = new ArrayDeque<>();
+    queue.add(root);
+
+    while (!queue.isEmpty()) {
+      final Object object = queue.poll();
+      if (!visited.add(object)) {
+        continue;
+      }
+
+      final Class<?> cls = object.getClass();
+      if (cls.isArray()) {
+        addClass(rootClasses, cls.getComponentType());
+        if (!cls.getComponentType().isPrimitive()) {
+          for (int i = 0; i < Array.getLength(object); i++) {
+            addIfPresent(queue, Array.get(object, i));
+          }
+        }
+        continue;
+      }
+
+      final SerializedLambda lambda = serializedLambda(object);
+      if (lambda != null) {
+        rootClasses.add(lambda.getCapturingClass());
+        rootClasses.add(lambda.getImplClass());
+        rootClasses.add(lambda.getFunctionalInterfaceClass());
+        for (int i = 0; i < lambda.getCapturedArgCount(); i++) {
+          addIfPresent(queue, lambda.getCapturedArg(i));
+        }
+        continue;
+      }
+
+      addClass(rootClasses, cls);
+      if (object instanceof Collection) {
+        ((Collection<?>) object).forEach(element -> addIfPresent(queue, element));
+      } else if (object instanceof Map) {
+        ((Map<?, ?>) object).forEach((key, value) -> {
+          addIfPresent(queue, key);
+          addIfPresent(queue, value);
+        });
+      }
+
+      for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          final int modifiers = field.getModifiers();
+          if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+              || field.getType().isPrimitive()) {
+            continue;
+          }
+          try {
+            field.setAccessible(true);
+            addIfPresent(queue, field.get(object));
+          } catch (ReflectiveOperationException | RuntimeException e) {
+            // not accessible, the class references will have to do
+          }
+        }
+      }
+    }
+    return rootClasses;
+  }
+
+  /**
+   * Returns the {@link SerializedLambda} of a serializable lambda, or null if the object isn't one.
+   */
+  static SerializedLambda serializedLambda(Object object) {
+    if (!object.getClass().isSynthetic()) {
+      return null;
+    }
+    try {
+      final Method writeReplace = object.getClass().getDeclaredMethod("writeReplace");
+      writeReplace.setAccessible(true);
+      final Object replacement = writeReplace.invoke(object);
+      return replacement instanceof SerializedLambda ? (SerializedLambda) replacement : null;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static void addClass(Set<String> classes, Class<?> cls) {
+    if (cls.getClassLoader() != null) {
+      classes.add(cls.getName().replace('.', '/'));
+    }
+  }
+
+  private static void addIfPresent(Deque<Object> queue, Object object) {
+    if (object != null) {
+      queue.add(object);
+    }
+  }
+
+  /**
+   * The classes and service providers of a classpath, and the entries that are always kept.
+   */
+  static final class Index {
+
+    private final List<String> keepPackages;
+    private final Map<String, Path> classes = new HashMap<>();
+    private final Map<String, List<String>> services = new HashMap<>();
+    private final Set<Path> kept = new HashSet<>();
+    private final ConcurrentMap<String, Set<String>> references = new ConcurrentHashMap<>();
+
+    private Index(List<Path> classpath, List<String> keepPackages) {
+      this.keepPackages = keepPackages;
+      for (Path entry : classpath) {
+        try {
+          index(entry);
+        } catch (IOException e) {
+          LOG.warn("Keeping classpath entry that could not be read: {}", entry, e);
+          kept.add(entry);
+        }
+      }
+    }
+
+    /**
+     * Indexes the classes and service providers in a classpath entry. The first entry containing
+     * a class wins, as in a class loader.
+     */
+    private void index(Path entry) throws IOException {
+      if (Files.isDirectory(entry)) {
+        try (Stream<Path> files = Files.walk(entry)) {
+          for (Path file : files.filter(Files::isRegularFile).collect(toList())) {
+            final String name = entry.relativize(file).toString().replace('\\', '/');
+            indexEntry(entry, name, () -> Files.newInputStream(file));
+          }
+        }
+      } else if (Files.isRegularFile(entry)) {
+        try (ZipFile jar = new ZipFile(entry.toFile())) {
+          for (ZipEntry jarEntry : Collections.list(jar.entries())) {
+            indexEntry(entry, jarEntry.getName(), () -> jar.getInputStream(jarEntry));
+          }
+        }
+      }
+    }
+
+    private void indexEntry(Path entry, String name, InputStreamSupplier content)
+        throws IOException {
+      if (keepPackages.stream().anyMatch(name::startsWith)) {
+        kept.add(entry);
+      }
+
+      if (name.endsWith(CLASS_EXT)) {
+        classes.putIfAbsent(name.substring(0, name.length() - CLASS_EXT.length()), entry);
+      } else if (name.startsWith(SERVICES_DIR) && name.length() > SERVICES_DIR.length()) {
+        final String service = name.substring(SERVICES_DIR.length()).replace('.', '/');
+        try (BufferedReader reader =
+                 new BufferedReader(new InputStreamReader(content.get(), UTF_8))) {
+          reader.lines()
+              .map(line -> line.replaceAll("#.*", "").trim())
+              .filter(line -> !line.isEmpty())
+              .forEach(provider -> services.computeIfAbsent(service, s -> new ArrayList<>())
+                  .add(provider.replace('.', '/')));
+        }
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface InputStreamSupplier {
+
+    InputStream get() throws IOException;
+  }
+}
@@ -0,0 +1,122 @@
+/*-
+ * -\-\-
+ * hype-submitter
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.spotify.hype.model.ClosureSizeReport;
+import com.spotify.hype.model.ClosureSizeReportBuilder;
+import com.spotify.hype.util.SerializationUtil;
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Breaks down the serialized size of a continuation by the fields it captures.
+ *
+ * <p>The captured fields are the captured arguments of a lambda, or the instance fields of any
+ * other continuation object. Captured objects of application classes are broken down one level
+ * further, which finds e.g. a large field of an accidentally captured enclosing instance.
+ */
+final class ClosureSizeAnalyzer {
+
+  private ClosureSizeAnalyzer() {
+  }
+
+  /**
+   * Analyzes the continuation, which serialized to {@code totalBytes} bytes.
+   */
+  static ClosureSizeReport analyze(Object continuation, long totalBytes) {
+    final Map<String, Long> fieldBytes = new LinkedHashMap<>();
+    final Map<String, Long> classBytes = new LinkedHashMap<>();
+
+    capturedFields(continuation).forEach((name, value) -> {
+      final long bytes = serializedSize(value);
+      fieldBytes.put(name, bytes);
+      classBytes.merge(value.getClass().getName(), bytes, Long::sum);
+
+      if (isApplicationObject(value)) {
+        capturedFields(value).forEach((nestedName, nestedValue) ->
+            fieldBytes.put(name + "." + nestedName, serializedSize(nestedValue)));
+      }
+    });
+
+    return new ClosureSizeReportBuilder()
+        .totalBytes(totalBytes)
+        .fieldBytes(fieldBytes)
+        .classBytes(classBytes)
+        .build();
+  }
+
+  /**
+   * Returns the non-null fields captured by the object, by name.
+   */
+  private static Map<String, Object> capturedFields(Object object) {
+    final Map<String, Object> fields = new LinkedHashMap<>();
+
+    final SerializedLambda lambda = ClasspathPruner.serializedLambda(object);
+    if (lambda != null) {
+      for (int i = 0; i < lambda.getCapturedArgCount(); i++) {
+        if (lambda.getCapturedArg(i) != null) {
+          // the name of the field in the generated lambda class
+          fields.put("arg$" + (i + 1), lambda.getCapturedArg(i));
+        }
+      }
+      return fields;
+    }
+
+    for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        final int modifiers = field.getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+          continue;
+        }
+        try {
+          field.setAccessible(true);
+          final Object value = field.get(object);
+          if (value != null) {
+            fields.putIfAbsent(field.getName(), value);
+          }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+          // not accessible, it is still part of the total
+        }
+      }
+    }
+    return fields;
+  }
+
+  private static boolean isApplicationObject(Object object) {
+    final Class<?> cls = object.getClass();
+    return cls.getClassLoader() != null
+           && !cls.isArray()
+           && !(object instanceof Collection)
+           && !(object instanceof Map);
+  }
+
+  private static long serializedSize(Object object) {
+    final CountingOutputStream output = new CountingOutputStream(ByteStreams.nullOutputStream());
+    SerializationUtil.serializeObject(object, output);
+    return output.getCount();
+  }
+}
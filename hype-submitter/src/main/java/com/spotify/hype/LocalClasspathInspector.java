@@ -21,20 +21,35 @@
 package com.spotify.hype;
 
 import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.jhades.model.ClasspathEntry;
 import org.jhades.service.ClasspathScanner;
 
+/**
+ * Inspects the classpath of a local class loader.
+ *
+ * <p>Scanning the classpath walks the file system, so the result is cached per class loader and
+ * only rescanned when the URLs of the class loader, its parents or {@code java.class.path}
+ * change.
+ */
 class LocalClasspathInspector implements ClasspathInspector {
 
+  private static final Map<ClassLoader, Scan> SCANS = new WeakHashMap<>();
+
   private final ClasspathScanner scanner = new ClasspathScanner();
   private final ClassLoader classLoader;
 
@@ -48,9 +63,41 @@ class LocalClasspathInspector implements ClasspathInspector {
 
   @Override
   public List<Path> classpathJars() {
-    return localClasspath().stream()
+    final List<String> urls = classLoaderUrls(classLoader);
+
+    synchronized (SCANS) {
+      final Scan scan = SCANS.get(classLoader);
+      if (scan != null && scan.urls.equals(urls)) {
+        return new ArrayList<>(scan.jars);
+      }
+    }
+
+    final List<Path> jars = localClasspath().stream()
         .map(entry -> Paths.get(URI.create(entry.getUrl())).toAbsolutePath())
         .collect(Collectors.toList());
+
+    synchronized (SCANS) {
+      SCANS.put(classLoader, new Scan(urls, jars));
+    }
+    return new ArrayList<>(jars);
+  }
+
+  /**
+   * Returns the URLs that determine the classpath of the class loader. Class loaders that are
+   * not {@link URLClassLoader}s, e.g. the application class loader on java 9+, are covered by
+   * {@code java.class.path}.
+   */
+  static List<String> classLoaderUrls(ClassLoader classLoader) {
+    final List<String> urls = new ArrayList<>();
+    urls.add(System.getProperty("java.class.path", ""));
+    for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+      if (loader instanceof URLClassLoader) {
+        Arrays.stream(((URLClassLoader) loader).getURLs())
+            .map(URL::toString)
+            .forEach(urls::add);
+      }
+    }
+    return urls;
   }
 
   private Set<ClasspathEntry> localClasspath() {
@@ -84,4 +131,15 @@ class LocalClasspathInspector implements ClasspathInspector {
         entry.getClassLoader(),
         base.resolve(entry.getUrl()).toUri().toString());
   }
+
+  private static final class Scan {
+
+    private final List<String> urls;
+    private final List<Path> jars;
+
+    private Scan(List<String> urls, List<Path> jars) {
+      this.urls = urls;
+      this.jars = jars;
+    }
+  }
 }
@@ -27,36 +27,48 @@ import static com.spotify.hype.ClasspathInspector.forLoader;
 import static com.spotify.hype.model.StagedContinuation.stagedContinuation;
 import static com.spotify.hype.runner.RunSpec.runSpec;
 import static com.spotify.hype.util.Util.randomAlphaNumeric;
-import static java.nio.file.Files.newInputStream;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.stream.Collectors.toList;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.spotify.docker.client.DockerClient;
+import com.spotify.hype.gcs.IoExecutors;
+import com.spotify.hype.gcs.ManifestEntry;
 import com.spotify.hype.gcs.RunManifest;
 import com.spotify.hype.gcs.RunManifestBuilder;
 import com.spotify.hype.gcs.StagingUtil;
 import com.spotify.hype.gcs.StagingUtil.StagedPackage;
+import com.spotify.hype.model.ClosureSizeReport;
+import com.spotify.hype.model.ClosureSizeReportBuilder;
 import com.spotify.hype.model.ContainerEngineCluster;
 import com.spotify.hype.model.DockerCluster;
 import com.spotify.hype.model.RunEnvironment;
 import com.spotify.hype.model.StagedContinuation;
 import com.spotify.hype.runner.DockerRunner;
-import com.spotify.hype.runner.KubernetesDockerRunner;
 import com.spotify.hype.runner.RunSpec;
 import com.spotify.hype.runner.VolumeRepository;
+import com.spotify.hype.util.Broadcast;
 import com.spotify.hype.util.Fn;
+import com.spotify.hype.util.HypeSerializer;
+import com.spotify.hype.util.KryoSerializer;
 import com.spotify.hype.util.SerializationUtil;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,12 +81,45 @@ public class Submitter implements Closeable {
 
   private static final String STAGING_PREFIX = "spotify-hype-staging";
 
+  /**
+   * Stage only the classpath entries reachable from the continuation, see
+   * {@link ClasspathPruner}. Enabled with the {@code hype.classpath.prune} system property.
+   */
+  private static final boolean PRUNE_CLASSPATH = Boolean.getBoolean("hype.classpath.prune");
+
+  /**
+   * Continuations of at least this many bytes are logged with their size breakdown, see
+   * {@link ClosureSizeReport}. Set with the {@code hype.continuation.warnBytes} system property.
+   */
+  private static final long WARN_CONTINUATION_BYTES =
+      Long.getLong("hype.continuation.warnBytes", 16 * 1024 * 1024);
+
+  /**
+   * Continuations larger than this many bytes fail to stage, 0 for no limit. Set with the
+   * {@code hype.continuation.maxBytes} system property.
+   */
+  private static final long MAX_CONTINUATION_BYTES = Long.getLong("hype.continuation.maxBytes", 0);
+
   private final ClasspathInspector classpathInspector;
   private final URI stagingLocation;
 
   private final VolumeRepository volumeRepository;
   private final DockerRunner runner;
 
+  private final ExecutorService asyncExecutor = IoExecutors.fromSystemProperties("hype-submit");
+  // blocking cluster calls and local runs, not bounded so that runs don't queue behind each other
+  private final ExecutorService runExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setNameFormat("hype-run-%d")
+          .setDaemon(true)
+          .build());
+  // only times polls and retries, the work itself runs on the runExecutor
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("hype-scheduler-%d")
+          .setDaemon(true)
+          .build());
+
   public static Submitter createLocal() throws IOException {
     return Submitter.createLocal(DockerCluster.dockerCluster());
   }
@@ -138,38 +183,115 @@ public class Submitter implements Closeable {
 
   public <T> T runOnCluster(Fn<T> fn, RunEnvironment environment, String image) {
     // 1. stage
-    final StagedContinuation stagedContinuation = stageContinuation(fn);
+    final RunSpec runSpec = stage(fn, environment, image);
 
     // 2. submit and wait for k8s pod (returns return value uri, termination log, etc)
-    final RunSpec runSpec = runSpec(environment, stagedContinuation, image);
-
-    LOG.info("Submitting {} to {}", stagedContinuation.manifestPath().toUri(), environment);
     final Optional<URI> returnUri = runner.run(runSpec);
 
     // 3. download serialized return value
+    return readReturnValue(returnUri, environment);
+  }
+
+  /**
+   * Like {@link #runOnCluster(Fn, RunEnvironment, String)}, but returns immediately. Staging and
+   * reading the return value run on a bounded executor, see {@link IoExecutors}, and the run is
+   * awaited without blocking a thread, so many runs can be in flight at once.
+   */
+  public <T> CompletableFuture<T> runOnClusterAsync(
+      Fn<T> fn, RunEnvironment environment, String image) {
+    return CompletableFuture.supplyAsync(() -> stage(fn, environment, image), asyncExecutor)
+        .thenCompose(runSpec -> runner.runAsync(runSpec, runExecutor, scheduler))
+        .thenApplyAsync(returnUri -> readReturnValue(returnUri, environment), asyncExecutor);
+  }
+
+  private RunSpec stage(Fn<?> fn, RunEnvironment environment, String image) {
+    // fail on an unknown serializer before staging, instead of after the run
+    environment.serializer().ifPresent(
+        name -> HypeSerializer.forName(name, Submitter.class.getClassLoader()));
+
+    final StagedContinuation stagedContinuation =
+        stageContinuation(fn, environment.files(), environment.serializer());
+    LOG.info("Submitting {} to {}", stagedContinuation.manifestPath().toUri(), environment);
+    return runSpec(environment, stagedContinuation, image);
+  }
+
+  private static <T> T readReturnValue(Optional<URI> returnUri, RunEnvironment environment) {
     if (returnUri.isPresent()) {
       final Path path = Paths.get(returnUri.get());
       @SuppressWarnings("unchecked")
       final T returnValue;
-      try (InputStream inputStream = newInputStream(path)) {
-        // 4. deserialize and return
+      try {
+        // deserialize and return, from a local file so that large values can be mapped
         //noinspection unchecked
-        returnValue = (T) SerializationUtil.readObject(inputStream);
+        final ClassLoader classLoader = Submitter.class.getClassLoader();
+        final HypeSerializer serializer = HypeSerializer
+            .forName(environment.serializer().orElse(KryoSerializer.NAME), classLoader);
+        if (path.getFileSystem() == FileSystems.getDefault()) {
+          returnValue = (T) serializer.read(path, classLoader);
+        } else {
+          final Path localPath = Files.createTempFile("return-value-", ".bin");
+          try {
+            Files.copy(path, localPath, REPLACE_EXISTING);
+            returnValue = (T) serializer.read(localPath, classLoader);
+          } finally {
+            // mappings of the file stay valid after it is deleted
+            Files.deleteIfExists(localPath);
+          }
+        }
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
 
-      waitForDetach(environment);
-
       return returnValue;
     } else {
       throw new RuntimeException("Failed to get return value");
     }
   }
 
+  /**
+   * Stages the value once, and returns a handle that continuations can capture instead of the
+   * value itself. The value is staged content addressed, so broadcasting an equal value again does
+   * not upload it again.
+   */
+  public <T> Broadcast<T> broadcast(T value) {
+    try {
+      // a fixed file name, so that the staged name only depends on the content
+      final Path dir = Files.createTempDirectory("broadcast-");
+      final Path file = dir.resolve("broadcast.bin");
+      try {
+        SerializationUtil.serializeObject(value, file);
+        final StagedPackage staged = StagingUtil.stageFiles(
+            Collections.singletonList(file.toString()), this.stagingLocation.toString()).get(0);
+        return Broadcast.of(URI.create(staged.location()), value);
+      } finally {
+        Files.deleteIfExists(file);
+        Files.delete(dir);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public StagedContinuation stageContinuation(Fn<?> fn) {
-    final List<Path> files = classpathInspector.classpathJars();
+    return stageContinuation(fn, Collections.emptyList());
+  }
+
+  /**
+   * Stages the continuation with its classpath, and the given data files or directories. The
+   * files are staged content addressed like the classpath, so unchanged files are not uploaded
+   * again.
+   */
+  public StagedContinuation stageContinuation(Fn<?> fn, List<Path> dataFiles) {
+    return stageContinuation(fn, dataFiles, Optional.empty());
+  }
+
+  private StagedContinuation stageContinuation(
+      Fn<?> fn, List<Path> dataFiles, Optional<String> serializer) {
+    final List<Path> files = PRUNE_CLASSPATH
+        ? ClasspathPruner.prune(classpathInspector.classpathJars(), fn)
+        : classpathInspector.classpathJars();
     final Path continuationPath = SerializationUtil.serializeContinuation(fn);
+    final ClosureSizeReport closureSizes = closureSizes(fn, continuationPath);
     final Path manifestPath = Paths.get(this.stagingLocation)
         .resolve("manifest-" + randomAlphaNumeric(8) + ".txt");
     final String continuationFileName = getNameWithoutExtension(continuationPath
@@ -194,52 +316,86 @@ public class Submitter implements Closeable {
       throw new RuntimeException();
     }
 
+    final List<StagedPackage> stagedFiles = StagingUtil.stageFiles(
+        dataFiles.stream()
+            .map(file -> file.toAbsolutePath().toString())
+            .collect(toList()),
+        this.stagingLocation.toString());
+
     final URI uri = URI.create(stagedContinuationPackage.get().location());
     final String cont = Paths.get(uri).getFileName().toString();
 
     // todo: move manifest creation into StagingUtil
-    final RunManifest manifest = new RunManifestBuilder()
+    final RunManifestBuilder manifestBuilder = new RunManifestBuilder()
         .continuation(cont)
-        .classPathFiles(stagedPackages.stream().map(StagedPackage::name).collect(toList()))
-        // todo: files
-        .build();
+        .classPathFiles(stagedPackages.stream()
+            .map(StagedPackage::name)
+            .filter(name -> !name.equals(cont))
+            .collect(toList()))
+        .files(stagedFiles.stream().map(StagedPackage::name).collect(toList()))
+        .serializer(serializer);
+    stagedPackages.forEach(p -> p.bundle().ifPresent(
+        bundle -> manifestBuilder.putBundledFile(p.name(), bundle)));
+    stagedFiles.forEach(p -> manifestBuilder.putEntry(
+        p.name(), p.manifestEntry(ManifestEntry.Role.FILE)));
+    stagedPackages.forEach(p -> manifestBuilder.putEntry(p.name(), p.manifestEntry(
+        p.name().equals(cont) ? ManifestEntry.Role.CONTINUATION : ManifestEntry.Role.CLASSPATH)));
+    // the classpath rarely changes between runs, so it is staged once as a shared classpath set
+    final RunManifest manifest = RunManifest.withClassPathSet(manifestBuilder.build());
     try {
       RunManifest.write(manifest, manifestPath);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
 
-    return stagedContinuation(manifestPath, manifest);
+    return stagedContinuation(manifestPath, manifest, closureSizes);
   }
 
-  @Override
-  public void close() throws IOException {
-    if (volumeRepository != null) {
-      volumeRepository.close();
+  private static ClosureSizeReport closureSizes(Fn<?> fn, Path continuationPath) {
+    final long totalBytes;
+    try {
+      totalBytes = Files.size(continuationPath);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    // the breakdown serializes every captured field again, so only compute it when it is reported
+    final boolean tooLarge = MAX_CONTINUATION_BYTES > 0 && totalBytes > MAX_CONTINUATION_BYTES;
+    if (!tooLarge && totalBytes < WARN_CONTINUATION_BYTES) {
+      return new ClosureSizeReportBuilder()
+          .totalBytes(totalBytes)
+          .build();
+    }
+    final ClosureSizeReport report = ClosureSizeAnalyzer.analyze(fn, totalBytes);
+
+    checkState(MAX_CONTINUATION_BYTES <= 0 || report.totalBytes() <= MAX_CONTINUATION_BYTES,
+        "Continuation is larger than the limit of %s bytes: %s",
+        MAX_CONTINUATION_BYTES, report.summary(5));
+    if (report.totalBytes() >= WARN_CONTINUATION_BYTES) {
+      LOG.warn("Large continuation, check what it captures: {}", report.summary(5));
     }
+    return report;
   }
 
   /**
-   * Hacky workaround for allowing k8s to detach any ReadWrite volumes from the nodes before
-   * we continue to submit more pods.
-   *
-   * <p>A volume can be used in ReadOnly mode even when it is attached to a node in ReadWrite
-   * mode. However, it can only be attached in ReadWrite mode to a single node.
-   *
-   * <p>If several pods requesting the same volume in ReadOnly mode are submitted too quickly
-   * after it has been used in ReadWrite mode, they'll be able to use it immediately on the node
-   * that has already has it attached as ReadWrite. All other nodes will have to wait for the
-   * pods on that node to complete, and the node to detach the volume, before they are able to
-   * attach the volume in ReadOnly mode. This leads to unnecessary contention between nodes and
-   * reduces node-parallelism of submitted pods down to one node.
+   * Keep {@code poolSize} pre-provisioned volumes of the given storage class and size ready to be
+   * used by transient volume requests. Has no effect when running on a local docker cluster.
    */
-  private void waitForDetach(RunEnvironment environment) {
-    if (runner instanceof KubernetesDockerRunner
-        && environment.volumeMounts().stream().anyMatch(v -> !v.readOnly())) {
-      try {
-        Thread.sleep(10_000);
-      } catch (InterruptedException ignore) {
-      }
+  public void warmVolumePool(String storageClass, String size, int poolSize) {
+    if (volumeRepository != null) {
+      volumeRepository.warmPool(storageClass, size, poolSize);
+    } else {
+      LOG.warn("Volume pools are not supported on local docker clusters");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    asyncExecutor.shutdown();
+    runExecutor.shutdown();
+    scheduler.shutdown();
+    if (volumeRepository != null) {
+      volumeRepository.close();
     }
   }
 
@@ -0,0 +1,67 @@
+/*-
+ * -\-\-
+ * hype-submitter
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype.model;
+
+import static java.util.stream.Collectors.joining;
+
+import io.norberg.automatter.AutoMatter;
+import java.util.Map;
+
+/**
+ * The size of a serialized continuation, broken down by what it captures.
+ *
+ * <p>Captured fields are measured by serializing each of them on its own, so objects that are
+ * shared between fields are counted for each of them.
+ *
+ * <p>The breakdown is only computed for continuations of at least the {@code
+ * hype.continuation.warnBytes} size, or above {@code hype.continuation.maxBytes}. Smaller
+ * continuations only report their total size.
+ */
+@AutoMatter
+public interface ClosureSizeReport {
+
+  /**
+   * The size of the serialized continuation in bytes.
+   */
+  long totalBytes();
+
+  /**
+   * The serialized size of each captured field, and of the fields of captured objects as
+   * {@code field.nested}.
+   */
+  Map<String, Long> fieldBytes();
+
+  /**
+   * The serialized size of the captured fields, summed by the class of their values.
+   */
+  Map<String, Long> classBytes();
+
+  /**
+   * Returns a one line summary with the total size and the {@code limit} largest fields.
+   */
+  default String summary(int limit) {
+    return totalBytes() + " bytes, largest fields: " + fieldBytes().entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .limit(limit)
+        .map(entry -> entry.getKey() + " (" + entry.getValue() + " bytes)")
+        .collect(joining(", "));
+  }
+}
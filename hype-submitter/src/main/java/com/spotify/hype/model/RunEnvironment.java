@@ -37,6 +37,23 @@ public interface RunEnvironment {
   List<VolumeMount> volumeMounts();
   Map<String, String> resourceRequests();
 
+  /**
+   * Local files or directories to stage with the run, see {@code StagedFiles} for accessing
+   * them from the continuation.
+   */
+  List<Path> files();
+
+  /**
+   * The name of the {@code HypeSerializer} for the return value, kryo if absent.
+   */
+  Optional<String> serializer();
+
+  /**
+   * A directory on the node to cache {@code Broadcast} values in, shared by all runs on the node
+   * that use the same directory. Values are cached per run if absent.
+   */
+  Optional<String> broadcastCache();
+
   static RunEnvironment environment() {
     return new RunEnvironmentBuilder().build();
   }
@@ -86,4 +103,26 @@ public interface RunEnvironment {
         .putResourceRequest(request.resource(), request.amount())
         .build();
   }
+
+  default RunEnvironment withFile(Path file) {
+    return RunEnvironmentBuilder.from(this)
+        .addFile(file)
+        .build();
+  }
+
+  default RunEnvironment withFile(String file) {
+    return withFile(Paths.get(file));
+  }
+
+  default RunEnvironment withSerializer(String serializer) {
+    return RunEnvironmentBuilder.from(this)
+        .serializer(serializer)
+        .build();
+  }
+
+  default RunEnvironment withBroadcastCache(String hostPath) {
+    return RunEnvironmentBuilder.from(this)
+        .broadcastCache(hostPath)
+        .build();
+  }
 }
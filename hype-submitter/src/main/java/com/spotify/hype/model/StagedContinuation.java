@@ -23,6 +23,7 @@ package com.spotify.hype.model;
 import com.spotify.hype.gcs.RunManifest;
 import io.norberg.automatter.AutoMatter;
 import java.nio.file.Path;
+import java.util.Optional;
 
 @AutoMatter
 public interface StagedContinuation {
@@ -30,10 +31,24 @@ public interface StagedContinuation {
   Path manifestPath();
   RunManifest manifest();
 
+  /**
+   * The size breakdown of the continuation, present when it was staged by the submitter.
+   */
+  Optional<ClosureSizeReport> closureSizes();
+
   static StagedContinuation stagedContinuation(Path manifestPath, RunManifest manifest) {
     return new StagedContinuationBuilder()
         .manifestPath(manifestPath)
         .manifest(manifest)
         .build();
   }
+
+  static StagedContinuation stagedContinuation(
+      Path manifestPath, RunManifest manifest, ClosureSizeReport closureSizes) {
+    return new StagedContinuationBuilder()
+        .manifestPath(manifestPath)
+        .manifest(manifest)
+        .closureSizes(closureSizes)
+        .build();
+  }
 }
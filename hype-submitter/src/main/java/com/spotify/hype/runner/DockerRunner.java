@@ -36,6 +36,9 @@ import io.fabric8.kubernetes.client.KubernetesClient;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,6 +58,21 @@ public interface DockerRunner {
    */
   Optional<URI> run(RunSpec runSpec);
 
+  /**
+   * Runs a hype execution without blocking the calling thread.
+   *
+   * <p>The default implementation blocks a thread of the executor in {@link #run(RunSpec)}.
+   *
+   * @param runSpec     Specification of what to run
+   * @param executor    Executor for blocking calls, e.g. to the cluster API
+   * @param scheduler   Executor for timing polls and retries, must not be blocked
+   * @return A future of the uri pointing to the gcs location of the return value
+   */
+  default CompletableFuture<Optional<URI>> runAsync(
+      RunSpec runSpec, Executor executor, ScheduledExecutorService scheduler) {
+    return CompletableFuture.supplyAsync(() -> run(runSpec), executor);
+  }
+
   static DockerRunner kubernetes(
       KubernetesClient kubernetesClient,
       VolumeRepository volumeRepository) {
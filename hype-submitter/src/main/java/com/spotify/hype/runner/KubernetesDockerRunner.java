@@ -21,6 +21,7 @@
 package com.spotify.hype.runner;
 
 import static com.spotify.hype.util.Util.randomAlphaNumeric;
+import static java.util.Collections.emptySet;
 import static java.util.Collections.singletonList;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toList;
@@ -31,16 +32,18 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.api.client.util.BackOff;
 import com.google.api.client.util.Sleeper;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.spotify.hype.FluentBackoff;
 import com.spotify.hype.model.RunEnvironment;
 import com.spotify.hype.model.Secret;
 import com.spotify.hype.model.StagedContinuation;
 import com.spotify.hype.model.VolumeMount;
 import com.spotify.hype.model.VolumeRequest;
+import com.spotify.hype.util.Broadcast;
 import io.fabric8.kubernetes.api.model.Container;
 import io.fabric8.kubernetes.api.model.ContainerBuilder;
 import io.fabric8.kubernetes.api.model.ContainerStatus;
-import io.fabric8.kubernetes.api.model.DoneablePod;
 import io.fabric8.kubernetes.api.model.EnvVarBuilder;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
@@ -51,21 +54,31 @@ import io.fabric8.kubernetes.api.model.PodSpecBuilder;
 import io.fabric8.kubernetes.api.model.PodStatus;
 import io.fabric8.kubernetes.api.model.Quantity;
 import io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaimVolumeSource;
 import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.api.model.VolumeBuilder;
 import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
-import io.fabric8.kubernetes.client.dsl.PodResource;
 import io.norberg.automatter.AutoMatter;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link DockerRunner} implementation that submits container executions to a Kubernetes cluster.
@@ -77,15 +90,30 @@ public class KubernetesDockerRunner implements DockerRunner {
 
   static final String HYPE_RUN = "hype-run";
   static final String EXECUTION_ID = "HYPE_EXECUTION_ID";
+  // set as an additional property, as the fabric8 model in use has no PodSpec.affinity field
+  static final String AFFINITY_PROPERTY = "affinity";
+  static final String HOSTNAME_LABEL = "kubernetes.io/hostname";
+  static final String BROADCAST_CACHE_VOLUME = "hype-broadcast-cache";
+  // where the node cache for broadcast values is mounted in the container
+  static final String BROADCAST_CACHE_PATH = "/var/cache/hype-broadcast";
 
   private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
   private static final int POLL_PODS_INTERVAL_SECONDS = 5;
+  private static final int AFFINITY_WEIGHT = 100;
 
   private final KubernetesClient client;
   private final VolumeRepository volumeRepository;
 
+  /**
+   * Claim name to the node it was last mounted read-write on by a pod submitted from here.
+   */
+  private final ConcurrentMap<String, String> readWriteNodes = new ConcurrentHashMap<>();
+
   private static final FluentBackoff BACKOFF_FACTORY =
       FluentBackoff.DEFAULT;
+  // consecutive failed polls before giving up on a pod
+  private static final FluentBackoff POLL_BACKOFF_FACTORY =
+      FluentBackoff.DEFAULT.withMaxRetries(10);
 
   KubernetesDockerRunner(KubernetesClient client, VolumeRepository volumeRepository) {
     this.client = Objects.requireNonNull(client);
@@ -127,47 +155,154 @@ public class KubernetesDockerRunner implements DockerRunner {
     }
   }
 
+  /**
+   * Creates the pod, retrying with backoff, and polls it until it completes. Calls to the
+   * Kubernetes API run on the executor, the scheduler only times the retries and polls. No thread
+   * is blocked while the pod is running.
+   */
+  @Override
+  public CompletableFuture<Optional<URI>> runAsync(
+      RunSpec runSpec, Executor executor, ScheduledExecutorService scheduler) {
+    final CompletableFuture<Optional<URI>> result = new CompletableFuture<>();
+    final Scheduling scheduling = new Scheduling(executor, scheduler, result);
+    scheduling.execute(() -> createAsync(runSpec, BACKOFF_FACTORY.backoff(), scheduling, result));
+    return result;
+  }
+
+  private void createAsync(RunSpec runSpec, BackOff backoff, Scheduling scheduling,
+                           CompletableFuture<Optional<URI>> result) {
+    final String podName;
+    try {
+      final Pod pod = client.pods().create(createPod(runSpec));
+      podName = pod.getMetadata().getName();
+      LOG.info("Created pod {}", podName);
+    } catch (KubernetesClientException kce) {
+      try {
+        long sleep = backoff.nextBackOffMillis();
+        if (sleep == BackOff.STOP) {
+          LOG.error("Failed to create Kubernetes pod", kce);
+          result.completeExceptionally(
+              new KubernetesClientException("Failed to create Kubernetes pod", kce));
+        } else {
+          LOG.warn("Kubernetes creation attempt failed, retrying in {} ms", sleep, kce);
+          scheduling.schedule(() -> createAsync(runSpec, backoff, scheduling, result), sleep);
+        }
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+      return;
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+      return;
+    }
+
+    pollAsync(podName, new AtomicBoolean(), POLL_BACKOFF_FACTORY.backoff(), scheduling, result);
+  }
+
+  /**
+   * Polls the pod until it completes. Failed polls are retried with backoff, and the pod is
+   * deleted when polling gives up.
+   */
+  private void pollAsync(String podName, AtomicBoolean nodeAssigned, BackOff backoff,
+                         Scheduling scheduling, CompletableFuture<Optional<URI>> result) {
+    long delayMillis = TimeUnit.SECONDS.toMillis(POLL_PODS_INTERVAL_SECONDS);
+    try {
+      final CompletableFuture<Optional<URI>> podResult = new CompletableFuture<>();
+      if (poll(podName, nodeAssigned, podResult)) {
+        client.pods().withName(podName).delete();
+        result.complete(podResult.join());
+        return;
+      }
+      backoff.reset();
+    } catch (KubernetesClientException kce) {
+      try {
+        delayMillis = backoff.nextBackOffMillis();
+      } catch (IOException e) {
+        delayMillis = BackOff.STOP;
+      }
+      if (delayMillis == BackOff.STOP) {
+        LOG.error("Failed to poll Kubernetes pod {}", podName, kce);
+        deleteQuietly(podName);
+        result.completeExceptionally(
+            new KubernetesClientException("Failed to poll Kubernetes pod " + podName, kce));
+        return;
+      }
+      LOG.warn("Polling pod {} failed, retrying in {} ms", podName, delayMillis, kce);
+    } catch (IOException | RuntimeException e) {
+      deleteQuietly(podName);
+      result.completeExceptionally(e);
+      return;
+    }
+
+    scheduling.schedule(
+        () -> pollAsync(podName, nodeAssigned, backoff, scheduling, result), delayMillis);
+  }
+
+  private void deleteQuietly(String podName) {
+    try {
+      client.pods().withName(podName).delete();
+    } catch (KubernetesClientException e) {
+      LOG.warn("Failed to delete pod {}", podName, e);
+    }
+  }
+
   private Optional<URI> blockUntilComplete(final String podName) throws InterruptedException {
     LOG.debug("Checking running statuses");
 
-    boolean nodeAssigned = false;
+    final AtomicBoolean nodeAssigned = new AtomicBoolean();
+    final CompletableFuture<Optional<URI>> result = new CompletableFuture<>();
+    while (!poll(podName, nodeAssigned, result)) {
+      Thread.sleep(TimeUnit.SECONDS.toMillis(POLL_PODS_INTERVAL_SECONDS));
+    }
+    return result.join();
+  }
 
-    while (true) {
-      final PodResource<Pod, DoneablePod> pod = client.pods().withName(podName);
-      final PodStatus status = pod.get().getStatus();
+  /**
+   * Checks the status of the pod once, and completes the result if the pod has completed.
+   *
+   * @return true if the pod has completed
+   */
+  private boolean poll(String podName, AtomicBoolean nodeAssigned,
+                       CompletableFuture<Optional<URI>> result) {
+    final Pod pod = client.pods().withName(podName).get();
+    if (pod == null) {
+      throw new IllegalStateException("Pod " + podName + " no longer exists");
+    }
+    final PodStatus status = pod.getStatus();
 
-      if (!nodeAssigned && pod.get().getSpec().getNodeName() != null) {
-        LOG.info("Pod {} assigned to node {}", podName, pod.get().getSpec().getNodeName());
-        nodeAssigned = true;
-      }
+    if (!nodeAssigned.get() && pod.getSpec().getNodeName() != null) {
+      LOG.info("Pod {} assigned to node {}", podName, pod.getSpec().getNodeName());
+      recordReadWriteNodes(pod);
+      nodeAssigned.set(true);
+    }
 
-      switch (status.getPhase()) {
-        case "Succeeded":
-          LOG.info("Kubernetes pod {} exited with status {}", podName, status.getPhase());
+    switch (status.getPhase()) {
+      case "Succeeded":
+        LOG.info("Kubernetes pod {} exited with status {}", podName, status.getPhase());
 
-          final Optional<ContainerStatus> containerStatus = status.getContainerStatuses().stream()
-              .filter(c -> HYPE_RUN.equals(c.getName()))
-              .findFirst();
+        final Optional<ContainerStatus> containerStatus = status.getContainerStatuses().stream()
+            .filter(c -> HYPE_RUN.equals(c.getName()))
+            .findFirst();
 
-          final Optional<String> terminated = containerStatus
-              .flatMap(s -> Optional.ofNullable(s.getState().getTerminated()))
-              .flatMap(t -> Optional.ofNullable(t.getMessage()));
+        final Optional<String> terminated = containerStatus
+            .flatMap(s -> Optional.ofNullable(s.getState().getTerminated()))
+            .flatMap(t -> Optional.ofNullable(t.getMessage()));
 
-          if (terminated.isPresent()) {
-            String message = terminated.get();
-            LOG.info("Got termination message: {}", message);
-            return Optional.of(URI.create(message));
-          }
-          break;
+        if (terminated.isPresent()) {
+          String message = terminated.get();
+          LOG.info("Got termination message: {}", message);
+          result.complete(Optional.of(URI.create(message)));
+          return true;
+        }
+        return false;
 
-        case "Failed":
-          LOG.info("Kubernetes pod {} failed with status {}", podName, status);
-          return Optional.empty();
+      case "Failed":
+        LOG.info("Kubernetes pod {} failed with status {}", podName, status);
+        result.complete(Optional.empty());
+        return true;
 
-        default:
-          break;
-      }
-      Thread.sleep(TimeUnit.SECONDS.toMillis(POLL_PODS_INTERVAL_SECONDS));
+      default:
+        return false;
     }
   }
 
@@ -190,6 +325,10 @@ public class KubernetesDockerRunner implements DockerRunner {
 
     final PodSpec spec = basePod.getSpec();
 
+    // steer scheduling based on where the requested volumes are attached
+    nodeAffinity(volumeMountInfos)
+        .ifPresent(affinity -> spec.setAdditionalProperty(AFFINITY_PROPERTY, affinity));
+
     // add volumes
     secrets.forEach(s ->
         spec.getVolumes()
@@ -203,6 +342,14 @@ public class KubernetesDockerRunner implements DockerRunner {
         .map(VolumeMountInfo::volume)
         .forEach(spec.getVolumes()::add);
 
+    // broadcast values are cached on the node if requested, shared by all runs on it
+    env.broadcastCache().ifPresent(hostPath ->
+        spec.getVolumes()
+            .add(new VolumeBuilder()
+                .withName(BROADCAST_CACHE_VOLUME)
+                .withNewHostPath(hostPath)
+                .build()));
+
     final Container container = findHypeRunContainer(basePod);
 
     // add volume mounts
@@ -216,6 +363,12 @@ public class KubernetesDockerRunner implements DockerRunner {
     volumeMountInfos.stream()
         .map(VolumeMountInfo::volumeMount)
         .forEach(container.getVolumeMounts()::add);
+    env.broadcastCache().ifPresent(hostPath ->
+        container.getVolumeMounts()
+            .add(new VolumeMountBuilder()
+                .withName(BROADCAST_CACHE_VOLUME)
+                .withMountPath(BROADCAST_CACHE_PATH)
+                .build()));
 
     // set args
     if (container.getArgs().size() > 0) {
@@ -229,6 +382,12 @@ public class KubernetesDockerRunner implements DockerRunner {
             .withName(EXECUTION_ID)
             .withValue(podName)
             .build());
+    env.broadcastCache().ifPresent(hostPath ->
+        container.getEnv()
+            .add(new EnvVarBuilder()
+                .withName(Broadcast.CACHE_DIR_ENV)
+                .withValue(BROADCAST_CACHE_PATH)
+                .build()));
 
     // add resource requests
     final ResourceRequirementsBuilder resourceReqsBuilder = container.getResources() != null
@@ -280,6 +439,96 @@ public class KubernetesDockerRunner implements DockerRunner {
     }
   }
 
+  /**
+   * Remember which node the read-write volumes of a scheduled pod are attached to.
+   */
+  @VisibleForTesting
+  void recordReadWriteNodes(Pod pod) {
+    final String nodeName = pod.getSpec().getNodeName();
+    pod.getSpec().getVolumes().stream()
+        .map(Volume::getPersistentVolumeClaim)
+        .filter(Objects::nonNull)
+        .filter(claim -> !Boolean.TRUE.equals(claim.getReadOnly()))
+        .map(PersistentVolumeClaimVolumeSource::getClaimName)
+        .forEach(claimName -> readWriteNodes.put(claimName, nodeName));
+  }
+
+  /**
+   * Creates a preferred node affinity based on which nodes currently have the requested volumes
+   * attached.
+   *
+   * <p>A volume can be used in ReadOnly mode even when it is attached to a node in ReadWrite
+   * mode. However, it can only be attached in ReadWrite mode to a single node. If pods mounting
+   * the volume in ReadOnly mode keep landing on the node that has it attached as ReadWrite, the
+   * volume is never detached and all readers collapse onto that one node. Readers therefore
+   * prefer other nodes, which lets the volume be detached and attached ReadOnly to many nodes.
+   * Writers prefer the node that already has the volume attached, to avoid waiting for a detach.
+   */
+  private Optional<Map<String, Object>> nodeAffinity(List<VolumeMountInfo> volumeMountInfos) {
+    final Set<String> avoid = new LinkedHashSet<>();
+    final Set<String> prefer = new LinkedHashSet<>();
+
+    // look up the attached nodes of all relevant claims at once
+    final List<PersistentVolumeClaim> claims = volumeMountInfos.stream()
+        .filter(info -> !info.volumeMount().getReadOnly()
+                        || readWriteNodes.containsKey(claimName(info)))
+        .map(VolumeMountInfo::persistentVolumeClaim)
+        .collect(toList());
+    if (claims.isEmpty()) {
+      return Optional.empty();
+    }
+    final Map<String, Set<String>> attachedNodes = volumeRepository.attachedNodes(claims);
+
+    for (VolumeMountInfo info : volumeMountInfos) {
+      final String claimName = claimName(info);
+      final Set<String> attached = attachedNodes.getOrDefault(claimName, emptySet());
+
+      if (info.volumeMount().getReadOnly()) {
+        final String readWriteNode = readWriteNodes.get(claimName);
+        if (readWriteNode != null) {
+          if (attached.contains(readWriteNode)) {
+            avoid.add(readWriteNode);
+          } else {
+            readWriteNodes.remove(claimName, readWriteNode);
+          }
+        }
+      } else {
+        prefer.addAll(attached);
+      }
+    }
+    avoid.removeAll(prefer);
+
+    final List<Object> preferences = new ArrayList<>();
+    if (!prefer.isEmpty()) {
+      preferences.add(nodePreference("In", prefer));
+    }
+    if (!avoid.isEmpty()) {
+      preferences.add(nodePreference("NotIn", avoid));
+    }
+    if (preferences.isEmpty()) {
+      return Optional.empty();
+    }
+
+    LOG.info("Preferring nodes {} and avoiding nodes {} for volume mounts", prefer, avoid);
+    return Optional.of(ImmutableMap.of(
+        "nodeAffinity", ImmutableMap.of(
+            "preferredDuringSchedulingIgnoredDuringExecution", preferences)));
+  }
+
+  private static String claimName(VolumeMountInfo info) {
+    return info.persistentVolumeClaim().getMetadata().getName();
+  }
+
+  private static Map<String, Object> nodePreference(String operator, Set<String> nodeNames) {
+    return ImmutableMap.of(
+        "weight", AFFINITY_WEIGHT,
+        "preference", ImmutableMap.of(
+            "matchExpressions", ImmutableList.of(ImmutableMap.of(
+                "key", HOSTNAME_LABEL,
+                "operator", operator,
+                "values", ImmutableList.copyOf(nodeNames)))));
+  }
+
   private VolumeMountInfo volumeMountInfo(PersistentVolumeClaim claim, VolumeMount volumeMount) {
     final String claimName = claim.getMetadata().getName();
 
@@ -335,4 +584,38 @@ public class KubernetesDockerRunner implements DockerRunner {
     Volume volume();
     io.fabric8.kubernetes.api.model.VolumeMount volumeMount();
   }
+
+  /**
+   * Runs the blocking steps of an async run on the executor, using the scheduler only to delay
+   * them. Fails the result if the executor no longer accepts tasks.
+   */
+  private static final class Scheduling {
+
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final CompletableFuture<?> result;
+
+    private Scheduling(Executor executor, ScheduledExecutorService scheduler,
+                       CompletableFuture<?> result) {
+      this.executor = Objects.requireNonNull(executor);
+      this.scheduler = Objects.requireNonNull(scheduler);
+      this.result = Objects.requireNonNull(result);
+    }
+
+    void execute(Runnable task) {
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    void schedule(Runnable task, long delayMillis) {
+      try {
+        scheduler.schedule(() -> execute(task), delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(e);
+      }
+    }
+  }
 }
@@ -20,10 +20,20 @@
 
 package com.spotify.hype.runner;
 
-import static java.util.stream.Collectors.toList;
+import static com.spotify.hype.model.VolumeRequest.VOLUME_REQUEST_PREFIX;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static java.util.stream.Collectors.toSet;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.spotify.hype.model.VolumeRequest;
 import com.spotify.hype.model.VolumeRequest.ClaimRequest;
+import com.spotify.hype.model.VolumeRequestBuilder;
+import com.spotify.hype.util.Util;
+import io.fabric8.kubernetes.api.model.AttachedVolume;
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.PersistentVolume;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
 import io.fabric8.kubernetes.api.model.Quantity;
@@ -32,11 +42,21 @@ import io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +64,12 @@ import org.slf4j.LoggerFactory;
  * A repository for creating temporary {@link PersistentVolumeClaim}s from {@link VolumeRequest}s.
  *
  * <p>The repository will delete all created claims when it is closed.
+ *
+ * <p>A warm pool of pre-created claims can be kept for a given storage class and size using
+ * {@link #warmPool(String, String, int)}. Transient {@link VolumeRequest}s matching a pool will
+ * take a claim from it immediately, and the pool is refilled in the background. Requests that
+ * keep their claim on exit always get a freshly created claim. Claims remaining in the pools are
+ * deleted when the repository is closed.
  */
 public class VolumeRepository implements Closeable {
 
@@ -53,17 +79,155 @@ public class VolumeRepository implements Closeable {
   static final String READ_WRITE_ONCE = "ReadWriteOnce";
   static final String READ_ONLY_MANY = "ReadOnlyMany";
 
+  private static final int POOL_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
   private final KubernetesClient client;
+  private final ExecutorService poolExecutor;
 
   private final ConcurrentMap<VolumeRequest, PersistentVolumeClaim> claims =
       new ConcurrentHashMap<>();
+  private final ConcurrentMap<ClaimRequest, Integer> poolSizes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<ClaimRequest, Queue<PersistentVolumeClaim>> pools =
+      new ConcurrentHashMap<>();
+  // claims stay bound to the same volume, so their disks are only looked up once
+  private final ConcurrentMap<String, String> diskNames = new ConcurrentHashMap<>();
 
   public VolumeRepository(KubernetesClient client) {
+    this(client, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("hype-volume-pool-%d")
+        .setDaemon(true)
+        .build()));
+  }
+
+  @VisibleForTesting
+  VolumeRepository(KubernetesClient client, ExecutorService poolExecutor) {
     this.client = Objects.requireNonNull(client);
+    this.poolExecutor = Objects.requireNonNull(poolExecutor);
+  }
+
+  /**
+   * Keep {@code poolSize} pre-created claims of the given storage class and size available for
+   * transient volume requests. Setting a pool size of 0 stops refilling the pool.
+   */
+  public void warmPool(String storageClass, String size, int poolSize) {
+    if (poolSize < 0) {
+      throw new IllegalArgumentException("poolSize " + poolSize + " cannot be negative");
+    }
+
+    final ClaimRequest poolKey = VolumeRequest.volumeRequest(storageClass, size).spec();
+    poolSizes.put(poolKey, poolSize);
+    refill(poolKey);
   }
 
   PersistentVolumeClaim getClaim(VolumeRequest volumeRequest) {
-    return claims.computeIfAbsent(volumeRequest, this::createClaim);
+    return claims.computeIfAbsent(volumeRequest, this::takeOrCreateClaim);
+  }
+
+  /**
+   * Returns the names of the nodes that currently have the volumes bound to the given claims
+   * attached, by claim name. The set is empty for claims that are not yet bound to a volume.
+   *
+   * <p>Nodes are listed once per call, and the disk of a bound claim is only looked up once.
+   */
+  Map<String, Set<String>> attachedNodes(Collection<PersistentVolumeClaim> claims) {
+    final Map<String, String> claimDisks = new HashMap<>();
+    for (PersistentVolumeClaim claim : claims) {
+      final String claimName = claim.getMetadata().getName();
+      final String diskName = diskNames.computeIfAbsent(claimName, this::diskName);
+      if (diskName != null) {
+        claimDisks.put(claimName, diskName);
+      }
+    }
+
+    final List<Node> nodes = claimDisks.isEmpty()
+                             ? emptyList()
+                             : client.nodes().list().getItems();
+    final Map<String, Set<String>> attachedNodes = new HashMap<>();
+    for (PersistentVolumeClaim claim : claims) {
+      final String claimName = claim.getMetadata().getName();
+      final String diskName = claimDisks.get(claimName);
+      attachedNodes.put(claimName, diskName == null ? emptySet() : nodes.stream()
+          .filter(node -> hasAttached(node, diskName))
+          .map(node -> node.getMetadata().getName())
+          .collect(toSet()));
+    }
+    return attachedNodes;
+  }
+
+  /**
+   * Returns the name of the disk bound to the claim, or null if it is not yet bound.
+   */
+  private String diskName(String claimName) {
+    final PersistentVolumeClaim current =
+        client.persistentVolumeClaims().withName(claimName).get();
+    if (current == null || current.getSpec() == null || current.getSpec().getVolumeName() == null) {
+      return null;
+    }
+
+    // attached volumes are named after the underlying disk, e.g. kubernetes.io/gce-pd/<pd-name>
+    final String volumeName = current.getSpec().getVolumeName();
+    final PersistentVolume volume = client.persistentVolumes().withName(volumeName).get();
+    return volume != null && volume.getSpec().getGcePersistentDisk() != null
+           ? volume.getSpec().getGcePersistentDisk().getPdName()
+           : volumeName;
+  }
+
+  private static boolean hasAttached(Node node, String diskName) {
+    final List<AttachedVolume> attached = node.getStatus() != null
+                                          ? node.getStatus().getVolumesAttached()
+                                          : null;
+    return attached != null && attached.stream()
+        .anyMatch(v -> v.getName().endsWith("/" + diskName));
+  }
+
+  private PersistentVolumeClaim takeOrCreateClaim(VolumeRequest volumeRequest) {
+    final ClaimRequest spec = volumeRequest.spec();
+    // kept claims outlive the repository, so they must never be a pooled claim that close() deletes
+    final Queue<PersistentVolumeClaim> pool = spec.useExisting() || volumeRequest.keep()
+        ? null
+        : pools.get(spec);
+    final PersistentVolumeClaim pooledClaim = pool != null ? pool.poll() : null;
+
+    if (pooledClaim != null) {
+      LOG.info("Using pooled PersistentVolumeClaim {} for {}",
+          pooledClaim.getMetadata().getName(),
+          volumeRequest);
+      refill(spec);
+      return pooledClaim;
+    }
+
+    return createClaim(volumeRequest);
+  }
+
+  private void refill(ClaimRequest poolKey) {
+    if (poolExecutor.isShutdown()) {
+      return;
+    }
+
+    try {
+      poolExecutor.submit(() -> fill(poolKey));
+    } catch (RejectedExecutionException e) {
+      // raced with close(), nothing left to refill
+      LOG.debug("Not refilling PersistentVolumeClaim pool for {}, repository is closed", poolKey);
+    }
+  }
+
+  private void fill(ClaimRequest poolKey) {
+    final Queue<PersistentVolumeClaim> pool =
+        pools.computeIfAbsent(poolKey, k -> new ConcurrentLinkedQueue<>());
+    try {
+      while (!poolExecutor.isShutdown()
+             && pool.size() < poolSizes.getOrDefault(poolKey, 0)) {
+        final VolumeRequest poolRequest = new VolumeRequestBuilder()
+            .id(VOLUME_REQUEST_PREFIX + Util.randomAlphaNumeric(8))
+            .keep(false)
+            .spec(poolKey)
+            .build();
+        pool.add(createClaim(poolRequest));
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to refill PersistentVolumeClaim pool for {}", poolKey, e);
+    }
   }
 
   private PersistentVolumeClaim createClaim(VolumeRequest volumeRequest) {
@@ -105,10 +269,25 @@ public class VolumeRepository implements Closeable {
 
   @Override
   public void close() throws IOException {
-    final List<PersistentVolumeClaim> toDelete = claims.entrySet().stream()
+    // let any in-flight claim creation finish so that it ends up in a pool and is deleted below
+    poolExecutor.shutdown();
+    try {
+      poolExecutor.awaitTermination(POOL_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    final List<PersistentVolumeClaim> toDelete = new ArrayList<>();
+    claims.entrySet().stream()
         .filter(e -> !e.getKey().keep())
         .map(Map.Entry::getValue)
-        .collect(toList());
+        .forEach(toDelete::add);
+    for (Queue<PersistentVolumeClaim> pool : pools.values()) {
+      // drain rather than copy so that a concurrent getClaim can not hand out a deleted claim
+      for (PersistentVolumeClaim claim; (claim = pool.poll()) != null; ) {
+        toDelete.add(claim);
+      }
+    }
 
     client.persistentVolumeClaims().delete(toDelete);
   }
@@ -0,0 +1,129 @@
+/*-
+ * -\-\-
+ * hype-submitter
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.spotify.hype.util.Fn;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClasspathPrunerTest {
+
+  private static final List<String> KEEP_PACKAGES = ClasspathPruner.DEFAULT_KEEP_PACKAGES;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void findsReferencedClasses() throws Exception {
+    byte[] classFile;
+    try (InputStream in = Root.class.getResourceAsStream("ClasspathPrunerTest$Root.class")) {
+      classFile = ByteStreams.toByteArray(in);
+    }
+
+    Set<String> referenced = ClasspathPruner.referencedClasses(classFile);
+    assertThat(referenced, hasItem("com/google/common/collect/ImmutableList"));
+    assertThat(referenced, hasItem("com/spotify/hype/util/Fn"));
+  }
+
+  @Test
+  public void findsClassesCapturedByLambda() throws Exception {
+    Root root = new Root(ImmutableList.of(new Value()));
+    Fn<Integer> fn = () -> root.run().size();
+
+    Set<String> rootClasses = ClasspathPruner.rootClasses(fn);
+    assertThat(rootClasses, hasItem("com/spotify/hype/ClasspathPrunerTest"));
+    assertThat(rootClasses, hasItem("com/spotify/hype/ClasspathPrunerTest$Root"));
+    assertThat(rootClasses, hasItem("com/spotify/hype/ClasspathPrunerTest$Value"));
+  }
+
+  @Test
+  public void prunesUnreachableJars() throws Exception {
+    List<Path> classpath = ClasspathInspector.forClass(getClass()).classpathJars();
+    Path guava = jar(classpath, "guava");
+    Path jhades = jar(classpath, "jhades");
+
+    // nested classes reference their outer class, so use a root outside of this test
+    List<Path> pruned = ClasspathPruner.prune(classpath, ImmutableList.of("value"));
+    assertThat(pruned, hasItem(guava));
+    assertThat(pruned, not(hasItem(jhades)));
+    assertThat(pruned.size() < classpath.size(), is(true));
+  }
+
+  @Test
+  public void reusesIndexOfUnchangedClasspath() throws Exception {
+    List<Path> classpath = ClasspathInspector.forClass(getClass()).classpathJars();
+
+    ClasspathPruner.Index index = ClasspathPruner.index(classpath, KEEP_PACKAGES);
+    assertThat(ClasspathPruner.index(classpath, KEEP_PACKAGES), is(sameInstance(index)));
+  }
+
+  @Test
+  public void rebuildsIndexWhenJarIsModified() throws Exception {
+    Path guava = jar(ClasspathInspector.forClass(getClass()).classpathJars(), "guava");
+    Path copy = temporaryFolder.newFile("guava.jar").toPath();
+    Files.copy(guava, copy, StandardCopyOption.REPLACE_EXISTING);
+    List<Path> classpath = ImmutableList.of(copy);
+
+    ClasspathPruner.Index index = ClasspathPruner.index(classpath, KEEP_PACKAGES);
+    Files.setLastModifiedTime(copy, FileTime.fromMillis(
+        Files.getLastModifiedTime(copy).toMillis() + 10_000));
+    assertThat(ClasspathPruner.index(classpath, KEEP_PACKAGES), is(not(sameInstance(index))));
+  }
+
+  private static Path jar(List<Path> classpath, String name) {
+    return classpath.stream()
+        .filter(path -> path.getFileName().toString().startsWith(name))
+        .findFirst()
+        .orElseThrow(() -> new AssertionError("No " + name + " jar on " + classpath));
+  }
+
+  static class Root implements Fn<List<Value>> {
+
+    final ImmutableList<Value> values;
+
+    Root(ImmutableList<Value> values) {
+      this.values = values;
+    }
+
+    @Override
+    public List<Value> run() {
+      return values;
+    }
+  }
+
+  static class Value {
+  }
+}
@@ -0,0 +1,82 @@
+/*-
+ * -\-\-
+ * hype-submitter
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import com.spotify.hype.model.ClosureSizeReport;
+import com.spotify.hype.util.Fn;
+import org.junit.Test;
+
+public class ClosureSizeAnalyzerTest {
+
+  @Test
+  public void measuresCapturedArguments() throws Exception {
+    byte[] large = new byte[100_000];
+    String small = "small";
+    Fn<Integer> fn = () -> large.length + small.length();
+
+    ClosureSizeReport report = ClosureSizeAnalyzer.analyze(fn, 100_100);
+    assertThat(report.fieldBytes().get("arg$1"), is(greaterThan(100_000L)));
+    assertThat(report.fieldBytes().get("arg$2"), is(lessThan(100L)));
+    assertThat(report.classBytes().get("[B"), is(greaterThan(100_000L)));
+    assertThat(report.summary(1), containsString("arg$1"));
+    assertThat(report.summary(1), not(containsString("arg$2")));
+  }
+
+  @Test
+  public void measuresFieldsOfCapturedObjects() throws Exception {
+    Holder holder = new Holder();
+    Fn<Integer> fn = () -> holder.data.length;
+
+    ClosureSizeReport report = ClosureSizeAnalyzer.analyze(fn, 10_100);
+    assertThat(report.fieldBytes().get("arg$1.data"), is(greaterThan(10_000L)));
+    assertThat(report.fieldBytes(), not(hasKey("arg$1.cache")));
+    assertThat(report.classBytes(), hasKey(Holder.class.getName()));
+  }
+
+  @Test
+  public void measuresFieldsOfAnonymousClasses() throws Exception {
+    Fn<Integer> fn = new Fn<Integer>() {
+      final int[] values = new int[1_000];
+
+      @Override
+      public Integer run() {
+        return values.length;
+      }
+    };
+
+    ClosureSizeReport report = ClosureSizeAnalyzer.analyze(fn, 4_100);
+    assertThat(report.fieldBytes().get("values"), is(greaterThan(4_000L)));
+    assertThat(report.fieldBytes(), hasKey("this$0"));
+  }
+
+  static class Holder {
+    byte[] data = new byte[10_000];
+    transient Object cache = new Object();
+  }
+}
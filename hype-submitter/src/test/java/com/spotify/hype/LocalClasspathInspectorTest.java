@@ -0,0 +1,76 @@
+/*-
+ * -\-\-
+ * hype-submitter
+ * --
+ * Copyright (C) 2016 - 2017 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+package com.spotify.hype;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalClasspathInspectorTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void returnsCopiesOfCachedScan() throws Exception {
+    ClasspathInspector inspector = ClasspathInspector.forClass(getClass());
+    List<Path> first = inspector.classpathJars();
+    first.clear();
+
+    List<Path> second = ClasspathInspector.forClass(getClass()).classpathJars();
+    assertThat(second, not(equalTo(first)));
+    assertThat(second, equalTo(inspector.classpathJars()));
+  }
+
+  @Test
+  public void urlsChangeWhenClassLoaderGrows() throws Exception {
+    GrowingClassLoader classLoader = new GrowingClassLoader(getClass().getClassLoader());
+    List<String> before = LocalClasspathInspector.classLoaderUrls(classLoader);
+
+    URL url = temp.newFolder().toURI().toURL();
+    classLoader.addURL(url);
+    List<String> after = LocalClasspathInspector.classLoaderUrls(classLoader);
+
+    assertThat(after, not(equalTo(before)));
+    assertThat(after, hasItem(url.toString()));
+  }
+
+  private static class GrowingClassLoader extends URLClassLoader {
+
+    GrowingClassLoader(ClassLoader parent) {
+      super(new URL[0], parent);
+    }
+
+    @Override
+    public void addURL(URL url) {
+      super.addURL(url);
+    }
+  }
+}
@@ -21,10 +21,12 @@
 package com.spotify.hype.model;
 
 import static com.spotify.hype.model.ResourceRequest.CPU;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.junit.Assert.assertThat;
 
+import java.nio.file.Paths;
 import org.junit.Test;
 
 public class RunEnvironmentTest {
@@ -38,4 +40,13 @@ public class RunEnvironmentTest {
     assertThat(env.resourceRequests().size(), equalTo(1));
     assertThat(env.resourceRequests(), hasEntry("cpu", "7"));
   }
+
+  @Test
+  public void addFiles() throws Exception {
+    RunEnvironment env = RunEnvironment.environment()
+        .withFile("data.csv")
+        .withFile(Paths.get("dataset"));
+
+    assertThat(env.files(), contains(Paths.get("data.csv"), Paths.get("dataset")));
+  }
 }
@@ -24,31 +24,66 @@ import static com.spotify.hype.model.ResourceRequest.CPU;
 import static com.spotify.hype.model.ResourceRequest.MEMORY;
 import static com.spotify.hype.model.RunEnvironment.environment;
 import static com.spotify.hype.model.RunEnvironment.fromYaml;
+import static com.spotify.hype.runner.KubernetesDockerRunner.BROADCAST_CACHE_PATH;
+import static com.spotify.hype.runner.KubernetesDockerRunner.BROADCAST_CACHE_VOLUME;
 import static com.spotify.hype.runner.KubernetesDockerRunner.EXECUTION_ID;
 import static com.spotify.hype.runner.KubernetesDockerRunner.HYPE_RUN;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isA;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertThat;
-
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.spotify.hype.gcs.RunManifest;
 import com.spotify.hype.gcs.RunManifestBuilder;
 import com.spotify.hype.model.RunEnvironment;
 import com.spotify.hype.model.Secret;
 import com.spotify.hype.model.StagedContinuation;
+import com.spotify.hype.model.VolumeRequest;
+import com.spotify.hype.util.Broadcast;
 import io.fabric8.kubernetes.api.model.Container;
 import io.fabric8.kubernetes.api.model.EnvVar;
 import io.fabric8.kubernetes.api.model.EnvVarBuilder;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
 import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
 import io.fabric8.kubernetes.api.model.PodSpec;
 import io.fabric8.kubernetes.api.model.Quantity;
 import io.fabric8.kubernetes.api.model.ResourceRequirements;
+import io.fabric8.kubernetes.api.model.Volume;
 import io.fabric8.kubernetes.api.model.VolumeBuilder;
 import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.MixedOperation;
+import io.fabric8.kubernetes.client.dsl.PodResource;
+import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -66,13 +101,22 @@ public class KubernetesDockerRunnerTest {
   @Rule
   public ExpectedException expect = ExpectedException.none();
 
+  private static final VolumeRequest VOLUME = VolumeRequest.volumeRequest("slow", "10Gi");
+  private static final PersistentVolumeClaim CLAIM = new PersistentVolumeClaimBuilder()
+      .withNewMetadata().withName("claim").endMetadata()
+      .build();
+
   private KubernetesDockerRunner runner;
+  private KubernetesClient client;
+  private VolumeRepository volumeRepository;
 
   @Before
   public void setUp() throws Exception {
-    KubernetesClient client = Mockito.mock(KubernetesClient.class);
-    VolumeRepository volumeRepository = Mockito.mock(VolumeRepository.class);
+    client = Mockito.mock(KubernetesClient.class);
+    volumeRepository = Mockito.mock(VolumeRepository.class);
     runner = new KubernetesDockerRunner(client, volumeRepository);
+
+    when(volumeRepository.getClaim(any())).thenReturn(CLAIM);
   }
 
   @Test
@@ -159,6 +203,143 @@ public class KubernetesDockerRunnerTest {
     Pod pod = createPod(env);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void runsAsyncUntilPodSucceeds() throws Exception {
+    MixedOperation pods = Mockito.mock(MixedOperation.class);
+    PodResource podResource = Mockito.mock(PodResource.class);
+    when(client.pods()).thenReturn(pods);
+    Set<String> callingThreads = ConcurrentHashMap.newKeySet();
+    when(pods.create(any())).thenAnswer(invocation -> {
+      callingThreads.add(Thread.currentThread().getName());
+      return invocation.getArguments()[0];
+    });
+    when(pods.withName(any())).thenReturn(podResource);
+    when(podResource.get()).thenAnswer(invocation -> {
+      callingThreads.add(Thread.currentThread().getName());
+      return succeededPod();
+    });
+
+    StagedContinuation cont = StagedContinuation.stagedContinuation(MANIFEST_PATH, MANIFEST);
+    ExecutorService executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("test-run-%d").build());
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      Optional<URI> returnUri = runner
+          .runAsync(RunSpec.runSpec(environment(), cont, "busybox:1"), executor, scheduler)
+          .get(10, TimeUnit.SECONDS);
+      assertThat(returnUri, is(Optional.of(URI.create("gs://bucket/return.bin"))));
+      assertThat(callingThreads, everyItem(startsWith("test-run-")));
+      verify(podResource).delete();
+    } finally {
+      executor.shutdown();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void retriesFailedPolls() throws Exception {
+    MixedOperation pods = Mockito.mock(MixedOperation.class);
+    PodResource podResource = Mockito.mock(PodResource.class);
+    when(client.pods()).thenReturn(pods);
+    when(pods.create(any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+    when(pods.withName(any())).thenReturn(podResource);
+    when(podResource.get())
+        .thenThrow(new KubernetesClientException("unavailable"))
+        .thenReturn(succeededPod());
+
+    StagedContinuation cont = StagedContinuation.stagedContinuation(MANIFEST_PATH, MANIFEST);
+    ExecutorService executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("test-run-%d").build());
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      Optional<URI> returnUri = runner
+          .runAsync(RunSpec.runSpec(environment(), cont, "busybox:1"), executor, scheduler)
+          .get(10, TimeUnit.SECONDS);
+      assertThat(returnUri, is(Optional.of(URI.create("gs://bucket/return.bin"))));
+    } finally {
+      executor.shutdown();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void deletesPodWhenPollingFails() throws Exception {
+    MixedOperation pods = Mockito.mock(MixedOperation.class);
+    PodResource podResource = Mockito.mock(PodResource.class);
+    when(client.pods()).thenReturn(pods);
+    when(pods.create(any())).thenAnswer(invocation -> invocation.getArguments()[0]);
+    when(pods.withName(any())).thenReturn(podResource);
+    when(podResource.get()).thenReturn(null);
+
+    StagedContinuation cont = StagedContinuation.stagedContinuation(MANIFEST_PATH, MANIFEST);
+    ExecutorService executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("test-run-%d").build());
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      CompletableFuture<Optional<URI>> result = runner
+          .runAsync(RunSpec.runSpec(environment(), cont, "busybox:1"), executor, scheduler);
+      expect.expectCause(isA(IllegalStateException.class));
+      try {
+        result.get(10, TimeUnit.SECONDS);
+      } finally {
+        verify(podResource).delete();
+      }
+    } finally {
+      executor.shutdown();
+      scheduler.shutdown();
+    }
+  }
+
+  private static Pod succeededPod() {
+    return new PodBuilder()
+        .withNewSpec().endSpec()
+        .withNewStatus()
+            .withPhase("Succeeded")
+            .addNewContainerStatus()
+                .withName(HYPE_RUN)
+                .withNewState().withNewTerminated().withMessage("gs://bucket/return.bin")
+                .endTerminated().endState()
+            .endContainerStatus()
+        .endStatus()
+        .build();
+  }
+
+  @Test
+  public void mountsBroadcastCacheFromNode() throws Exception {
+    RunEnvironment env = environment()
+        .withBroadcastCache("/var/cache/hype-broadcast");
+    Pod pod = createPod(env);
+
+    assertThat(pod.getSpec().getVolumes(), hasItems(new VolumeBuilder()
+        .withName(BROADCAST_CACHE_VOLUME)
+        .withNewHostPath("/var/cache/hype-broadcast")
+        .build()));
+
+    Container container = findHypeRunContainer(pod);
+    assertThat(container.getVolumeMounts(), hasItems(new VolumeMountBuilder()
+        .withName(BROADCAST_CACHE_VOLUME)
+        .withMountPath(BROADCAST_CACHE_PATH)
+        .build()));
+    assertThat(container.getEnv(),
+        hasItems(envVar(Broadcast.CACHE_DIR_ENV, BROADCAST_CACHE_PATH)));
+  }
+
+  @Test
+  public void doesNotMountBroadcastCacheByDefault() throws Exception {
+    Pod pod = createPod(environment());
+
+    assertThat(pod.getSpec().getVolumes().stream()
+        .map(Volume::getName)
+        .collect(toList()), not(hasItem(BROADCAST_CACHE_VOLUME)));
+    Container container = findHypeRunContainer(pod);
+    assertThat(container.getEnv().stream()
+        .map(EnvVar::getName)
+        .collect(toList()), not(hasItem(Broadcast.CACHE_DIR_ENV)));
+  }
+
   @Test
   public void mountsSecretVolume() throws Exception {
     RunEnvironment env = environment()
@@ -220,6 +401,71 @@ public class KubernetesDockerRunnerTest {
     assertThat(resources.getLimits(), hasEntry("memory", new Quantity("1Gi")));
   }
 
+  @Test
+  public void noAffinityWhenVolumeNotAttached() throws Exception {
+    RunEnvironment env = environment()
+        .withMount(VOLUME.mountReadWrite("/data"));
+    Pod pod = createPod(env);
+
+    assertThat(toJson(pod).path("spec").has("affinity"), is(false));
+  }
+
+  @Test
+  public void readWriteMountPrefersAttachedNode() throws Exception {
+    when(volumeRepository.attachedNodes(singletonList(CLAIM)))
+        .thenReturn(ImmutableMap.of("claim", ImmutableSet.of("node-1")));
+    RunEnvironment env = environment()
+        .withMount(VOLUME.mountReadWrite("/data"));
+    Pod pod = createPod(env);
+
+    JsonNode expression = nodeAffinityExpression(pod);
+    assertThat(expression.path("key").asText(), is("kubernetes.io/hostname"));
+    assertThat(expression.path("operator").asText(), is("In"));
+    assertThat(expression.path("values").toString(), is("[\"node-1\"]"));
+  }
+
+  @Test
+  public void readOnlyMountAvoidsReadWriteNode() throws Exception {
+    Pod writer = createPod(environment().withMount(VOLUME.mountReadWrite("/data")));
+    writer.getSpec().setNodeName("node-1");
+    runner.recordReadWriteNodes(writer);
+
+    when(volumeRepository.attachedNodes(singletonList(CLAIM)))
+        .thenReturn(ImmutableMap.of("claim", ImmutableSet.of("node-1")));
+    Pod reader = createPod(environment().withMount(VOLUME.mountReadOnly("/data")));
+
+    JsonNode expression = nodeAffinityExpression(reader);
+    assertThat(expression.path("operator").asText(), is("NotIn"));
+    assertThat(expression.path("values").toString(), is("[\"node-1\"]"));
+  }
+
+  @Test
+  public void readOnlyMountIgnoresDetachedReadWriteNode() throws Exception {
+    Pod writer = createPod(environment().withMount(VOLUME.mountReadWrite("/data")));
+    writer.getSpec().setNodeName("node-1");
+    runner.recordReadWriteNodes(writer);
+
+    when(volumeRepository.attachedNodes(singletonList(CLAIM)))
+        .thenReturn(ImmutableMap.of("claim", ImmutableSet.of("node-2")));
+    Pod reader = createPod(environment().withMount(VOLUME.mountReadOnly("/data")));
+
+    assertThat(toJson(reader).path("spec").has("affinity"), is(false));
+  }
+
+  /**
+   * Returns the first node affinity match expression of the pod, as sent to the API server.
+   */
+  private static JsonNode nodeAffinityExpression(Pod pod) throws Exception {
+    return toJson(pod).path("spec").path("affinity").path("nodeAffinity")
+        .path("preferredDuringSchedulingIgnoredDuringExecution").path(0)
+        .path("preference").path("matchExpressions").path(0);
+  }
+
+  private static JsonNode toJson(Pod pod) throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    return mapper.readTree(mapper.writeValueAsString(pod));
+  }
+
   private Pod createPod(RunEnvironment env) {
     StagedContinuation cont = StagedContinuation.stagedContinuation(MANIFEST_PATH, MANIFEST);
     RunSpec runSpec = RunSpec.runSpec(env, cont, "busybox:1");
@@ -21,6 +21,7 @@
 package com.spotify.hype.runner;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.is;
@@ -32,6 +33,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.spotify.hype.model.VolumeRequest;
 import io.fabric8.kubernetes.api.model.DoneablePersistentVolumeClaim;
 import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
@@ -41,6 +43,7 @@ import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.dsl.MixedOperation;
 import io.fabric8.kubernetes.client.dsl.Resource;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -73,11 +76,13 @@ public class VolumeRepositoryTest {
   @Captor ArgumentCaptor<PersistentVolumeClaim> createdPvc;
   @Captor ArgumentCaptor<List<PersistentVolumeClaim>> deletedPvcs;
 
+  private ExecutorService poolExecutor;
   private VolumeRepository volumeRepository;
 
   @Before
   public void setUp() throws Exception {
-    volumeRepository = new VolumeRepository(mockClient);
+    poolExecutor = MoreExecutors.newDirectExecutorService();
+    volumeRepository = new VolumeRepository(mockClient, poolExecutor);
     when(mockClient.persistentVolumeClaims()).thenReturn(pvcs);
     when(pvcs.withName(any())).thenAnswer(invocation ->
         invocation.getArguments()[0].equals(EXISTING_CLAIM)
@@ -141,4 +146,86 @@ public class VolumeRepositoryTest {
     volumeRepository.close();
     assertThat(deletedPvcs.getValue(), contains(claim2));
   }
+
+  @Test
+  public void takesClaimFromWarmPool() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 1);
+    PersistentVolumeClaim pooledClaim = createdPvc.getValue();
+
+    VolumeRequest request = VolumeRequest.volumeRequest("storage-class-name", "16Gi");
+    PersistentVolumeClaim claim = volumeRepository.getClaim(request);
+
+    assertThat(claim, is(pooledClaim));
+    assertThat(claim.getMetadata().getName(), not(request.id()));
+  }
+
+  @Test
+  public void refillsWarmPoolAfterTake() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 2);
+    verify(pvcs, times(2)).create(any());
+
+    volumeRepository.getClaim(VolumeRequest.volumeRequest("storage-class-name", "16Gi"));
+    verify(pvcs, times(3)).create(any());
+  }
+
+  @Test
+  public void doesNotUseWarmPoolForOtherSizes() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 1);
+    PersistentVolumeClaim pooledClaim = createdPvc.getValue();
+
+    VolumeRequest request = VolumeRequest.volumeRequest("storage-class-name", "32Gi");
+    PersistentVolumeClaim claim = volumeRepository.getClaim(request);
+
+    assertThat(claim, not(pooledClaim));
+    assertThat(claim.getMetadata().getName(), equalTo(request.id()));
+  }
+
+  @Test
+  public void doesNotUseWarmPoolForKeptClaims() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 1);
+    PersistentVolumeClaim pooledClaim = createdPvc.getValue();
+
+    VolumeRequest request = VolumeRequest.volumeRequest("storage-class-name", "16Gi").keepOnExit();
+    PersistentVolumeClaim claim = volumeRepository.getClaim(request);
+
+    assertThat(claim, not(pooledClaim));
+    assertThat(claim.getMetadata().getName(), equalTo(request.id()));
+  }
+
+  @Test
+  public void deletesPooledClaimsOnClose() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 1);
+    PersistentVolumeClaim pooledClaim = createdPvc.getValue();
+    VolumeRequest request = VolumeRequest.volumeRequest("storage-class-name", "16Gi").keepOnExit();
+    PersistentVolumeClaim claim = volumeRepository.getClaim(request);
+
+    volumeRepository.close();
+    assertThat(claim.getMetadata().getName(), equalTo(request.id()));
+    assertThat(deletedPvcs.getValue(), containsInAnyOrder(pooledClaim));
+  }
+
+  @Test
+  public void takesClaimFromWarmPoolWhileClosing() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 1);
+    PersistentVolumeClaim pooledClaim = createdPvc.getValue();
+    poolExecutor.shutdown();
+
+    PersistentVolumeClaim claim = volumeRepository.getClaim(
+        VolumeRequest.volumeRequest("storage-class-name", "16Gi"));
+
+    assertThat(claim, is(pooledClaim));
+    verify(pvcs, times(1)).create(any());
+  }
+
+  @Test
+  public void doesNotHandOutPooledClaimsAfterClose() throws Exception {
+    volumeRepository.warmPool("storage-class-name", "16Gi", 1);
+    PersistentVolumeClaim pooledClaim = createdPvc.getValue();
+    volumeRepository.close();
+
+    PersistentVolumeClaim claim = volumeRepository.getClaim(
+        VolumeRequest.volumeRequest("storage-class-name", "16Gi"));
+
+    assertThat(claim, not(pooledClaim));
+  }
 }
@@ -1,7 +1,14 @@
 package com.spotify.hype
 
+import java.util.concurrent.{CompletionException, Executor}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import java.util.function.BiConsumer
+
 import com.spotify.hype.model.RunEnvironment
 
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.{Failure, Success}
+
 trait HypeSubmitter {
 
   protected def submitter: Submitter
@@ -10,6 +17,64 @@ trait HypeSubmitter {
     submitter.runOnCluster(hfn.run, env, hfn.image)
   }
 
+  /**
+    * Submits without blocking. The run is awaited without holding a thread, so many runs can be
+    * in flight from one driver.
+    */
+  def submitAsync[T](hfn: HFn[T], env: RunEnvironment): Future[T] = {
+    val promise = Promise[T]()
+    submitter.runOnClusterAsync(hfn.run, env, hfn.image).whenComplete(new BiConsumer[T, Throwable] {
+      def accept(value: T, e: Throwable): Unit = e match {
+        case null => promise.success(value)
+        case c: CompletionException if c.getCause != null => promise.failure(c.getCause)
+        case _ => promise.failure(e)
+      }
+    })
+    promise.future
+  }
+
+  /**
+    * Submits all functions with at most `parallelism` runs in flight at once. The results are in
+    * the order of the functions. The future fails as soon as a run fails, and no further
+    * functions are submitted, while runs already in flight are left to complete.
+    */
+  def submitAll[T](hfns: Seq[HFn[T]], env: RunEnvironment, parallelism: Int): Future[Seq[T]] = {
+    require(parallelism > 0, s"parallelism must be positive, was $parallelism")
+    implicit val ec: ExecutionContext = HypeSubmitter.callerRuns
+
+    val fns = hfns.toIndexedSeq
+    val results = new Array[Any](fns.size)
+    val next = new AtomicInteger()
+    val remaining = new AtomicInteger(fns.size)
+    val failed = new AtomicBoolean()
+    val promise = Promise[Seq[T]]()
+
+    // each lane submits the next function when its previous run completes, until a run fails
+    def lane(): Unit = {
+      val i = next.getAndIncrement()
+      if (i < fns.size && !failed.get) {
+        submitAsync(fns(i), env).onComplete {
+          case Success(value) =>
+            results(i) = value
+            if (remaining.decrementAndGet() == 0) {
+              promise.trySuccess(results.toSeq.asInstanceOf[Seq[T]])
+            }
+            lane()
+          case Failure(e) =>
+            failed.set(true)
+            promise.tryFailure(e)
+        }
+      }
+    }
+
+    if (fns.isEmpty) {
+      promise.success(Seq.empty)
+    } else {
+      (1 to math.min(parallelism, fns.size)).foreach(_ => lane())
+    }
+    promise.future
+  }
+
   protected def setupShutdown(submitter: Submitter): Submitter = {
     Runtime.getRuntime.addShutdownHook(new Thread(new Runnable {
       def run(): Unit = submitter.close()
@@ -17,3 +82,11 @@ trait HypeSubmitter {
     submitter
   }
 }
+
+private object HypeSubmitter {
+
+  /** Runs the future callbacks on the thread that completes the run, they only submit runs. */
+  private val callerRuns = ExecutionContext.fromExecutor(new Executor {
+    def execute(command: Runnable): Unit = command.run()
+  })
+}
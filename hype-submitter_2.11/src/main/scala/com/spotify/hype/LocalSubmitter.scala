@@ -6,7 +6,10 @@ case class LocalSubmitter(keepContainer: Boolean = false,
                           keepTerminationLog: Boolean = false,
                           keepVolumes: Boolean = false
                          ) extends HypeSubmitter {
-  override protected def submitter: Submitter = setupShutdown(Submitter.createLocal(
+  // created on first use and shared by all runs, so staging caches apply across them
+  private lazy val s = setupShutdown(Submitter.createLocal(
     DockerCluster.dockerCluster(keepContainer, keepTerminationLog, keepVolumes)
   ))
+
+  override protected def submitter: Submitter = s
 }